@@ -0,0 +1,50 @@
+package com.itsmechlark.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/**
+ * Context stand-in whose files directory is a fresh temporary directory.
+ */
+final class BenchContext extends Context {
+    private final File filesDir;
+
+    BenchContext() {
+        filesDir = new File(System.getProperty("java.io.tmpdir"), "util-log-bench-" + System.nanoTime());
+        filesDir.mkdirs();
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.itsmechlark.util.benchmark";
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return null;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    void delete() {
+        delete(filesDir);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
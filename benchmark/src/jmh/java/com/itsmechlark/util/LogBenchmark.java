@@ -0,0 +1,159 @@
+package com.itsmechlark.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a log call per scenario: filtered out (static, through a
+ * {@link Logger} and structured), logcat only, file only (sync and async), exception logging
+ * and four threads contending for the file.
+ * Throughput and sample-time modes give ops/us and latency percentiles; run
+ * with {@code -prof gc} (the default of the jmh task) for allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+    static final String TAG = "Bench";
+
+    static final String MSG = "request finished in 12 ms";
+
+    static final Logger LOGGER = Log.forTag(TAG);
+
+    static final Throwable ERROR = new IllegalStateException("benchmark");
+
+    /**
+     * Shared setup: a log file in a temporary directory and the given levels.
+     */
+    abstract static class Configured {
+        BenchContext context;
+
+        void configure(int logcatLevel, int fileLevel, boolean async) {
+            context = new BenchContext();
+            final Log.Config config = Log.getConfig();
+            config.setLoggingLevel(logcatLevel);
+            config.setFileLoggingLevel(fileLevel);
+            config.setMaxFileSize(8 * 1024 * 1024);
+            config.setMaxArchives(2);
+            config.setCompressArchives(false);
+            config.setAsync(async);
+            Log.getInstance(context, "bench.log");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Log.getConfig().setAsync(false);
+            Log.flush();
+            context.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Filtered extends Configured {
+        @Setup(Level.Trial)
+        public void setUp() {
+            configure(Log.ASSERT, Log.ASSERT, false);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Logcat extends Configured {
+        @Setup(Level.Trial)
+        public void setUp() {
+            configure(Log.VERBOSE, Log.ASSERT, false);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileOnly extends Configured {
+        @Param({"false", "true"})
+        public boolean async;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            configure(Log.ASSERT, Log.VERBOSE, async);
+        }
+    }
+
+    @Benchmark
+    public int filtered(Filtered state) {
+        return Log.d(TAG, MSG);
+    }
+
+    @Benchmark
+    public int filteredLogger(Filtered state) {
+        return LOGGER.d(MSG);
+    }
+
+    @Benchmark
+    public int filteredStructured(Filtered state) {
+        return Log.at(Log.DEBUG).kv("user", TAG).kv("latencyMs", 12L).msg(MSG);
+    }
+
+    @Benchmark
+    public int filteredException(Filtered state) {
+        return Log.d(TAG, MSG, ERROR);
+    }
+
+    @Benchmark
+    public int logcat(Logcat state) {
+        return Log.i(TAG, MSG);
+    }
+
+    @Benchmark
+    public int file(FileOnly state) {
+        return Log.i(TAG, MSG);
+    }
+
+    @Benchmark
+    public int exception(FileOnly state) {
+        return Log.e(TAG, MSG, ERROR);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int contended(FileOnly state) {
+        return Log.i(TAG, MSG);
+    }
+
+    /**
+     * What every exception overload used to build, for comparison.
+     */
+    @Benchmark
+    public String stackTraceConcatenation() {
+        return MSG + "\n" + Log.getStackTraceString(ERROR);
+    }
+
+    @Benchmark
+    public String processMessage(Logcat state) {
+        return new Log.Print().processMessage(MSG);
+    }
+
+    @Benchmark
+    public String scope(Logcat state) {
+        return Log.Print.getScope();
+    }
+
+    @Benchmark
+    public int writeToFile(FileOnly state) {
+        Log.writeToFile(state.context, "INFO", TAG, MSG);
+        return 0;
+    }
+}
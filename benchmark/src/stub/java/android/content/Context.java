@@ -0,0 +1,25 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+public abstract class Context {
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+    public abstract File getFilesDir();
+
+    public abstract String getPackageName();
+
+    public abstract PackageManager getPackageManager();
+
+    public abstract Context getApplicationContext();
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+}
@@ -0,0 +1,8 @@
+package android.content.pm;
+
+public abstract class PackageManager {
+    public static class NameNotFoundException extends Exception {
+    }
+
+    public abstract ApplicationInfo getApplicationInfo(String packageName, int flags) throws NameNotFoundException;
+}
@@ -0,0 +1,11 @@
+package android.net;
+
+public class NetworkInfo {
+    public boolean isConnected() {
+        return false;
+    }
+
+    public int getType() {
+        return 0;
+    }
+}
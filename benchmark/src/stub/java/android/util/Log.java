@@ -0,0 +1,44 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Stand-in for the framework class: logcat output is counted, not printed, so
+ * benchmarks measure the library rather than a console.
+ */
+public final class Log {
+    public static volatile long bytes;
+
+    private Log() {
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        final int length = tag.length() + msg.length();
+        bytes += length;
+        return length;
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return true;
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        if (tr == null) return "";
+        final StringWriter sw = new StringWriter();
+        tr.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(5, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int e(String tag, String msg) {
+        return println(6, tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(6, tag, msg + '\n' + getStackTraceString(tr));
+    }
+}
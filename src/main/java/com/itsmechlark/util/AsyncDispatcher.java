@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, single-consumer ring of preallocated {@link LogEvent}s.
+ * Callers claim a sequence with a CAS on {@code tail} ({@link #claim(int)}), fill
+ * {@link #slot(long)} and publish it by storing {@code sequence + 1} in
+ * {@code published} ({@link #publish(long)}). The "Log-writer" thread
+ * copies each published slot out, advances {@code head} and hands the copy to
+ * {@link Log#dispatch(LogEvent)}.
+ * <p/>
+ * Under {@link Log#OVERFLOW_DROP_OLDEST} producers advance {@code head} themselves,
+ * so the consumer only commits an event once its own CAS on {@code head} wins.
+ * <p/>
+ * On shutdown the writer exits by setting {@link #TAIL_CLOSED} in {@code tail}
+ * with a CAS once it has caught up, so a producer that checked {@code running}
+ * just before cannot claim a slot nobody will take.
+ */
+final class AsyncDispatcher implements Runnable {
+
+    static final long CLOSED = -1;
+    static final long DROPPED = -2;
+
+    private static final long TAIL_CLOSED = 1L << 62;
+
+    private static final int SPINS_BEFORE_PARK = 64;
+    private static final long PARK_NANOS = 100L * 1000 * 1000;
+    private static final long BLOCKED_PRODUCER_PARK_NANOS = 50L * 1000;
+
+    private final LogEvent[] slots;
+    private final AtomicLongArray published;
+    private final int capacity;
+    private final int mask;
+    private final int policy;
+    private final int overflowLevel;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long completed;
+    private volatile int maxDepth;
+    private volatile boolean running = true;
+    private volatile boolean parked;
+
+    private final Thread thread;
+
+    AsyncDispatcher(int requestedCapacity, int policy, int overflowLevel) {
+        int size = 1;
+        while (size < requestedCapacity) size <<= 1;
+        capacity = size;
+        mask = size - 1;
+        slots = new LogEvent[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new LogEvent();
+        }
+        published = new AtomicLongArray(size);
+        this.policy = policy;
+        this.overflowLevel = overflowLevel;
+
+        thread = new Thread(this, "Log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the sequence of a free slot, {@link #DROPPED} if the overflow policy
+     * rejected the event, or {@link #CLOSED} if the caller has to log synchronously.
+     */
+    long claim(int priority) {
+        if (!running || Thread.currentThread() == thread) return CLOSED;
+
+        long seq;
+        for (; ; ) {
+            seq = tail.get();
+            if ((seq & TAIL_CLOSED) != 0) return CLOSED;
+            final long h = head.get();
+            if (seq - h < capacity) {
+                if (tail.compareAndSet(seq, seq + 1)) break;
+                continue;
+            }
+
+            if (policy == Log.OVERFLOW_DROP_OLDEST) {
+                if (published.get((int) h & mask) == h + 1 && head.compareAndSet(h, h + 1)) {
+                    dropped.incrementAndGet();
+                } else {
+                    Thread.yield();
+                }
+            } else if (policy == Log.OVERFLOW_DROP_BELOW_LEVEL && priority < overflowLevel) {
+                dropped.incrementAndGet();
+                return DROPPED;
+            } else {
+                // Nobody would ever free a slot once the writer is gone.
+                if (!running || !thread.isAlive()) return CLOSED;
+                wakeConsumer();
+                LockSupport.parkNanos(BLOCKED_PRODUCER_PARK_NANOS);
+            }
+        }
+
+        return seq;
+    }
+
+    /**
+     * @return the event to fill in for a sequence returned by {@link #claim(int)}.
+     */
+    LogEvent slot(long seq) {
+        return slots[(int) seq & mask];
+    }
+
+    /**
+     * Hands the filled slot of {@code seq} to the writer.
+     */
+    void publish(long seq) {
+        published.lazySet((int) seq & mask, seq + 1);
+        wakeConsumer();
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of events claimed but not yet taken by the writer.
+     */
+    int getDepth() {
+        return (int) Math.max(0, Math.min(tail() - head.get(), capacity));
+    }
+
+    /**
+     * @return largest depth the writer saw while metrics were enabled.
+     */
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Waits until every event queued before this call has been dispatched.
+     *
+     * @return false if the timeout elapsed first.
+     */
+    boolean awaitDrained(long timeoutMillis) {
+        if (Thread.currentThread() == thread) return true;
+        final long target = tail();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (completed < target) {
+            if (!thread.isAlive() || System.currentTimeMillis() >= deadline) return false;
+            wakeConsumer();
+            LockSupport.parkNanos(BLOCKED_PRODUCER_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting events and waits for the writer to drain what is queued.
+     */
+    void shutdown(long timeoutMillis) {
+        running = false;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() == thread) return;
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long tail() {
+        return tail.get() & ~TAIL_CLOSED;
+    }
+
+    private void wakeConsumer() {
+        if (parked) LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        final LogEvent event = new LogEvent();
+        int idle = 0;
+        for (; ; ) {
+            final long h = head.get();
+            final int index = (int) h & mask;
+            if (published.get(index) != h + 1) {
+                completed = h;
+                if (!running && tail.compareAndSet(h, h | TAIL_CLOSED)) break;
+                if (++idle < SPINS_BEFORE_PARK) {
+                    Thread.yield();
+                    continue;
+                }
+                parked = true;
+                if (published.get(index) != h + 1 && (running || h != tail())) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                parked = false;
+                continue;
+            }
+            idle = 0;
+            if (LogStats.enabled) {
+                final int depth = (int) Math.min(tail() - h, capacity);
+                if (depth > maxDepth) maxDepth = depth;
+            }
+
+            boolean copied;
+            try {
+                event.copyFrom(slots[index]);
+                copied = true;
+            } catch (RuntimeException e) {
+                // A producer overwrote the slot mid-copy, e.g. growing its fields.
+                copied = false;
+            }
+            if (!head.compareAndSet(h, h + 1)) {
+                // A producer dropped this slot while we were copying it.
+                event.clear();
+                continue;
+            }
+            if (!copied) {
+                event.clear();
+                dropped.incrementAndGet();
+                completed = h + 1;
+                continue;
+            }
+            try {
+                Log.dispatch(event);
+            } catch (Throwable t) {
+                if (Log.DEBUGGING) android.util.Log.e("Log", "Log writer failed", t);
+            }
+            event.clear();
+            completed = h + 1;
+        }
+    }
+}
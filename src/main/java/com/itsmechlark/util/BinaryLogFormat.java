@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * Layout of log files written with {@link Log#FORMAT_BINARY}. Shared by
+ * {@link FileAppender} and {@link LogDecoder}, and free of Android dependencies.
+ * <pre>
+ * file   := MAGIC VERSION record*
+ * record := DICT  varint(id) string          defines (or redefines) a tag id
+ *         | BASE  varint(time)               absolute time in epoch millis
+ *         | EVENT varint(delta) u8(priority) varint(id) string
+ * string := varint(byte length) UTF-8 bytes
+ * </pre>
+ * Varints are unsigned LEB128. An EVENT's time is the previous BASE or EVENT
+ * time plus {@code delta}. Appending to an existing file, or a clock going
+ * backwards, starts with a new BASE; tag ids are only valid after their DICT.
+ */
+final class BinaryLogFormat {
+
+    static final byte[] MAGIC = {'U', 'L', 'O', 'G'};
+
+    static final int VERSION = 1;
+
+    static final int DICT = 1;
+
+    static final int BASE = 2;
+
+    static final int EVENT = 3;
+
+    /**
+     * Tag ids are reassigned from zero once this many tags were defined in one file.
+     */
+    static final int MAX_DICTIONARY_SIZE = 4096;
+
+    private BinaryLogFormat() {
+    }
+}
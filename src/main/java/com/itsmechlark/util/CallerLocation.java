@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the "SCOPE/File.java:line" scope of a log call.
+ * <p/>
+ * Log calls only capture a {@link Throwable}, whose backtrace is recorded
+ * natively and not turned into {@link StackTraceElement}s until
+ * {@link Throwable#getStackTrace()} is called. That happens here, when a sink
+ * first asks the event for its scope, which in async mode is on the writer
+ * thread. The caller is the first frame after the logging classes, so the
+ * result does not depend on which overload was used.
+ * <p/>
+ * Each call site is resolved once: its scope is cached under the caller frame
+ * (class, method, file and line), so the events of a site share one string
+ * instead of building their own. The frame itself is only known after the
+ * walk, which {@link Log#callSite()} avoids altogether.
+ */
+final class CallerLocation {
+
+    private static final String PACKAGE = "com.itsmechlark.util.";
+
+    private static final int MAX_CACHED_SITES = 512;
+
+    private static final ConcurrentHashMap<StackTraceElement, Site> SITES = new ConcurrentHashMap<StackTraceElement, Site>();
+
+    private CallerLocation() {
+    }
+
+    /**
+     * @return the scope for the first caller frame of {@code capture}, or
+     * {@code prefix} alone if no caller frame can be found.
+     */
+    static String resolve(String prefix, Throwable capture) {
+        final StackTraceElement frame = callerFrame(capture.getStackTrace());
+        if (frame == null) return prefix;
+
+        Site site = SITES.get(frame);
+        // A changed prefix, see Log.BaseConfig#scope, resolves the site again.
+        if (site == null || !site.prefix.equals(prefix)) {
+            site = new Site(prefix, prefix + "/" + frame.getFileName() + ":" + frame.getLineNumber());
+            if (SITES.size() >= MAX_CACHED_SITES) SITES.clear();
+            SITES.put(frame, site);
+        }
+        return site.scope;
+    }
+
+    private static StackTraceElement callerFrame(StackTraceElement[] stack) {
+        boolean inLogger = false;
+        for (StackTraceElement frame : stack) {
+            final boolean internal = isInternal(frame.getClassName());
+            if (internal) {
+                inLogger = true;
+            } else if (inLogger) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isInternal(String className) {
+        if (!className.startsWith(PACKAGE)) return false;
+        final String simple = className.substring(PACKAGE.length());
+        return simple.startsWith("Log")
+                || simple.startsWith("AsyncDispatcher")
+                || simple.startsWith("EventBuilder")
+                || simple.startsWith("CallerLocation");
+    }
+
+    private static final class Site {
+
+        final String prefix;
+
+        final String scope;
+
+        Site(String prefix, String scope) {
+            this.prefix = prefix;
+            this.scope = scope;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Pauses a {@link LogShipper} while the device has no network, is only on a
+ * mobile network when {@code wifiOnly}, or is on battery below
+ * {@link #MIN_BATTERY_PERCENT}. The battery level comes from the sticky battery
+ * broadcast, which needs no permission; the network is only checked if the app
+ * holds {@code ACCESS_NETWORK_STATE}, otherwise failed uploads back off instead.
+ */
+public final class DeviceConstraint implements LogShipper.Constraint {
+
+    public static final int MIN_BATTERY_PERCENT = 15;
+
+    private final Context context;
+
+    private final boolean wifiOnly;
+
+    public DeviceConstraint(Context context, boolean wifiOnly) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        this.wifiOnly = wifiOnly;
+    }
+
+    @Override
+    public boolean isConstrained() {
+        return isBatteryLow() || isNetworkUnsuitable();
+    }
+
+    private boolean isBatteryLow() {
+        final Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return false;
+        // The BatteryManager constants for these extras arrived after API level 3.
+        if (battery.getIntExtra("plugged", 0) != 0) return false;
+        final int level = battery.getIntExtra("level", -1);
+        final int scale = battery.getIntExtra("scale", 100);
+        return level >= 0 && scale > 0 && level * 100 < MIN_BATTERY_PERCENT * scale;
+    }
+
+    private boolean isNetworkUnsuitable() {
+        final ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity == null) return false;
+        final NetworkInfo network;
+        try {
+            network = connectivity.getActiveNetworkInfo();
+        } catch (SecurityException noPermission) {
+            return false;
+        }
+        if (network == null || !network.isConnected()) return true;
+        return wifiOnly && network.getType() != ConnectivityManager.TYPE_WIFI;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * Builds a structured log event:
+ * <pre>
+ * Log.at(Log.INFO).kv("user", id).kv("latencyMs", 12L).msg("request finished");
+ * </pre>
+ * Fields reach the file as JSON or logfmt keys with {@link Log#FORMAT_JSON} and
+ * {@link Log#FORMAT_LOGFMT}, and are appended as " key=value" to the message
+ * everywhere else.
+ * <p/>
+ * When the level is disabled {@link Log#at(int)} returns a shared builder that
+ * ignores everything. Otherwise the builder is pooled per thread, so finish
+ * each one with {@link #msg(String)} before starting the next and never keep it.
+ */
+public final class EventBuilder {
+
+    static final EventBuilder DISABLED = new EventBuilder(false);
+
+    private static final ThreadLocal<EventBuilder> POOL = new ThreadLocal<EventBuilder>() {
+        @Override
+        protected EventBuilder initialValue() {
+            return new EventBuilder(true);
+        }
+    };
+
+    private final boolean enabled;
+
+    private final KeyValues fields;
+
+    private int priority;
+
+    private String tag;
+
+    private Throwable throwable;
+
+    private boolean inUse;
+
+    private EventBuilder(boolean enabled) {
+        this.enabled = enabled;
+        fields = enabled ? new KeyValues() : null;
+    }
+
+    /**
+     * @return this thread's builder, or a new one if it is still being filled,
+     * e.g. by a value whose {@code toString()} logs.
+     */
+    static EventBuilder obtain(int priority, String tag) {
+        EventBuilder builder = POOL.get();
+        if (builder.inUse) builder = new EventBuilder(true);
+        builder.inUse = true;
+        builder.priority = priority;
+        builder.tag = tag;
+        return builder;
+    }
+
+    public EventBuilder kv(String key, String value) {
+        if (enabled) fields.add(key, value);
+        return this;
+    }
+
+    public EventBuilder kv(String key, int value) {
+        if (enabled) fields.add(key, (long) value);
+        return this;
+    }
+
+    public EventBuilder kv(String key, long value) {
+        if (enabled) fields.add(key, value);
+        return this;
+    }
+
+    public EventBuilder kv(String key, double value) {
+        if (enabled) fields.add(key, value);
+        return this;
+    }
+
+    public EventBuilder kv(String key, boolean value) {
+        if (enabled) fields.add(key, value);
+        return this;
+    }
+
+    /**
+     * @param value turned into text with {@code toString()} once a sink needs it,
+     *              possibly on another thread.
+     */
+    public EventBuilder kv(String key, Object value) {
+        if (enabled) fields.add(key, value);
+        return this;
+    }
+
+    public EventBuilder error(Throwable tr) {
+        if (enabled) throwable = tr;
+        return this;
+    }
+
+    /**
+     * Logs the event and releases the builder.
+     */
+    public int msg(String msg) {
+        if (!enabled) return 0;
+        try {
+            return Log.logStructured(priority, tag, msg, throwable, fields);
+        } finally {
+            fields.clear();
+            tag = null;
+            throwable = null;
+            inUse = false;
+        }
+    }
+
+    /**
+     * Logs the event without a message.
+     */
+    public int log() {
+        return msg(null);
+    }
+}
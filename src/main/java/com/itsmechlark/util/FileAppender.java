@@ -0,0 +1,983 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived appender that owns one open channel per log file under
+ * {@code getFilesDir()/log}. Records are UTF-8 encoded straight into a reusable
+ * buffer, without building an intermediate String, and
+ * written out when the buffer crosses {@link Log.Config#getFlushThreshold()},
+ * when {@link Log.Config#getFlushInterval()} has elapsed, or on {@link Log#flush()}.
+ * <p/>
+ * Records are written as text, with {@link Log#FORMAT_BINARY} in the
+ * {@link BinaryLogFormat} layout, or as one {@link StructuredFormat} JSON or
+ * logfmt line each. A file keeps the format it was started with; changing
+ * {@link Log.Config#getFileFormat()} rolls it over.
+ * <p/>
+ * Before each record the appender checks {@link Log.Config#getMaxFileSize()} and
+ * {@link Log.Config#isDailyRollover()}; rolling over is a close and a rename,
+ * after which {@link LogArchiver} prunes old segments in the background.
+ * <p/>
+ * Durability follows {@link Log.Config#getDurability()}. Forcing the channel
+ * happens outside the appender lock as a group commit: a thread that needs its
+ * record on disk waits for the sync lock, and returns without forcing again if
+ * a force that started after its write has already finished. Threads that log
+ * meanwhile keep appending to the buffer.
+ * <p/>
+ * Text files get a {@link LogIndex} sidecar for {@link LogReader}. Entries for
+ * completed blocks are written after the records they cover, so a crash can
+ * only leave records unindexed, never an entry without its records.
+ * <p/>
+ * Under {@link Log#MULTI_PROCESS_SEGMENTS} the file of a secondary process is
+ * named by {@link ProcessName}. Under {@link Log#MULTI_PROCESS_LOCKED} processes
+ * share the file: each batch is written holding a lock on {@code <name>.lock},
+ * and only whole records are written, so a record that does not fit the buffer
+ * grows it instead of being split across batches. The lock file also holds a
+ * roll generation, which tells a process that another one rolled the file over.
+ */
+final class FileAppender {
+
+    private static final String LOG_DIRECTORY = "log";
+
+    private static final String HEADER_PREFIX = "Logged at ";
+
+    /**
+     * Longest unsigned LEB128 encoding of a long.
+     */
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private static final int FORMAT_UNKNOWN = -1;
+
+    private static final int MAX_RETAINED_LINE = 16 * 1024;
+
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /**
+     * Region of the lock file locked for appending; holds the roll generation.
+     */
+    private static final int GENERATION_BYTES = 8;
+
+    /**
+     * Region of the lock file locked by {@link LogArchiver}.
+     */
+    static final int ARCHIVE_LOCK_POSITION = GENERATION_BYTES;
+
+    private static final long ARCHIVE_LOCK_POLL_MILLIS = 50;
+
+    /**
+     * How long appending goes on to the current file after it failed to roll.
+     */
+    private static final long ROLL_RETRY_MILLIS = 60 * 1000L;
+
+    private static final ConcurrentHashMap<String, FileAppender> APPENDERS = new ConcurrentHashMap<String, FileAppender>();
+
+    private static final long MIN_FLUSHER_PERIOD = 100;
+
+    private static ScheduledExecutorService flusher;
+
+    private static ScheduledFuture<?> flusherTask;
+
+    private static final Runnable FLUSH_TASK = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.currentTimeMillis();
+            final long interval = Log.getConfig().getFlushInterval();
+            for (FileAppender appender : APPENDERS.values()) {
+                appender.flushIfOlderThan(now, interval);
+                appender.syncIfDue(now);
+            }
+        }
+    };
+
+    private final File file;
+
+    private ByteBuffer buffer;
+
+    private final int capacity;
+
+    /**
+     * Whether other processes append to the file, see {@link Log#MULTI_PROCESS_LOCKED}.
+     */
+    private final boolean shared;
+
+    private FileChannel lockChannel;
+
+    /**
+     * Roll generation the channel was opened at, -1 before the first batch.
+     */
+    private long generation = -1;
+
+    private final ByteBuffer generationBytes = ByteBuffer.allocate(GENERATION_BYTES);
+
+    /**
+     * Buffer position of the record being encoded, or -1 between records.
+     */
+    private int recordStart = -1;
+
+    /**
+     * File offset of the record being encoded, or -1 between records.
+     */
+    private long recordOffset = -1;
+
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+
+    private final char[] header = new char[HEADER_PREFIX.length() + TimestampFormatter.DATE_TIME_LENGTH];
+
+    /**
+     * Reused to assemble JSON and logfmt lines.
+     */
+    private StringBuilder line = new StringBuilder(256);
+
+    private volatile FileChannel channel;
+
+    /**
+     * Bytes this appender has handed to the OS, across rollovers.
+     */
+    private volatile long written;
+
+    /**
+     * Value of {@link #written} last returned for a caller to force, so that
+     * under {@link Log#DURABILITY_EVERY_BATCH} each drain is forced once.
+     */
+    private long syncRequested;
+
+    private final Object syncLock = new Object();
+
+    /**
+     * Value of {@link #written} covered by the last completed force; guarded by
+     * {@link #syncLock}.
+     */
+    private long synced;
+
+    private long lastSync = System.currentTimeMillis();
+
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * Bytes in the current file, not counting what is still buffered.
+     */
+    private long size;
+
+    /**
+     * Start of the next day, after which a daily rollover is due.
+     */
+    private long rollAt;
+
+    /**
+     * Before this time a rollover is not retried after failing, 0 if none failed.
+     */
+    private long rollRetryAt;
+
+    /**
+     * Format of the current file, {@link #FORMAT_UNKNOWN} while it is empty.
+     */
+    private int format;
+
+    /**
+     * Tag ids already defined in the current binary file.
+     */
+    private final HashMap<String, Integer> tagIds = new HashMap<String, Integer>();
+
+    /**
+     * Time of the last BASE or EVENT record, or -1 before the first one.
+     */
+    private long lastTime = -1;
+
+    private final File indexFile;
+
+    private FileChannel indexChannel;
+
+    /**
+     * Completed index entries waiting for their records to be written out.
+     */
+    private final ByteBuffer pendingIndex = ByteBuffer.allocate(16 * LogIndex.ENTRY_SIZE);
+
+    /**
+     * The index block being filled: offset of its first record, time range,
+     * level bitmap and record count.
+     */
+    private long blockStart;
+
+    private long blockMinTime;
+
+    private long blockMaxTime;
+
+    private int blockLevels;
+
+    private int blockRecords;
+
+    private FileAppender(File file, int capacity, boolean shared) {
+        this.file = file;
+        this.indexFile = LogIndex.indexFile(file);
+        this.capacity = capacity;
+        this.shared = shared;
+        this.buffer = ByteBuffer.allocate(capacity);
+        HEADER_PREFIX.getChars(0, HEADER_PREFIX.length(), header, 0);
+        size = file.length();
+        rollAt = startOfNextDay(file.exists() ? file.lastModified() : System.currentTimeMillis());
+        format = detectFormat(file, size);
+        if (size == 0 || shared) indexFile.delete();
+    }
+
+    private static int detectFormat(File file, long size) {
+        if (size == 0) return FORMAT_UNKNOWN;
+        final byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final int read = in.read(magic);
+            if (read == magic.length && Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+                return Log.FORMAT_BINARY;
+            }
+            if (read > 0 && magic[0] == '{') return Log.FORMAT_JSON;
+            if (read == magic.length && new String(magic, "US-ASCII").equals("time")) return Log.FORMAT_LOGFMT;
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return Log.FORMAT_TEXT;
+    }
+
+    /**
+     * Returns the appender for {@code name}, creating it and its log directory
+     * on first use. The directory is resolved once per file name.
+     */
+    static FileAppender get(Context context, String name) {
+        FileAppender appender = APPENDERS.get(name);
+        if (appender != null) return appender;
+
+        final File directory = new File(context.getFilesDir(), LOG_DIRECTORY);
+        directory.mkdirs();
+        if (!directory.isDirectory()) return null;
+
+        final Log.Config config = Log.getConfig();
+        final int mode = config.getMultiProcessMode();
+        final String fileName = mode == Log.MULTI_PROCESS_SEGMENTS ? ProcessName.fileName(context, name) : name;
+        appender = new FileAppender(new File(directory, fileName), Math.max(config.getFlushThreshold(), 1024),
+                mode == Log.MULTI_PROCESS_LOCKED);
+        final FileAppender existing = APPENDERS.putIfAbsent(name, appender);
+        if (existing != null) return existing;
+
+        startFlusher();
+        LogArchiver.recover(appender.file);
+        return appender;
+    }
+
+    /**
+     * Writes out every appender's buffer and, unless durability is
+     * {@link Log#DURABILITY_NONE}, forces it to storage.
+     */
+    static void flushAll() {
+        final boolean durable = Log.getConfig().getDurability() != Log.DURABILITY_NONE;
+        for (FileAppender appender : APPENDERS.values()) {
+            appender.flush();
+            if (durable) appender.sync(appender.written);
+        }
+    }
+
+    static void closeAll() {
+        for (Iterator<FileAppender> it = APPENDERS.values().iterator(); it.hasNext(); ) {
+            it.next().close();
+            it.remove();
+        }
+    }
+
+    private static synchronized void startFlusher() {
+        if (flusher != null) return;
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "Log-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        rescheduleFlusher();
+    }
+
+    /**
+     * Runs the flusher at the flush interval, or at the sync interval if that is
+     * shorter under {@link Log#DURABILITY_PERIODIC}, so neither falls behind.
+     * Called again when either interval or the durability mode changes.
+     */
+    static synchronized void rescheduleFlusher() {
+        if (flusher == null) return;
+        final Log.Config config = Log.getConfig();
+        long period = config.getFlushInterval();
+        if (config.getDurability() == Log.DURABILITY_PERIODIC) period = Math.min(period, config.getSyncInterval());
+        period = Math.max(period, MIN_FLUSHER_PERIOD);
+        if (flusherTask != null) flusherTask.cancel(false);
+        flusherTask = flusher.scheduleWithFixedDelay(FLUSH_TASK, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a record in the configured file format; text records look like
+     * "Logged at HH:mm:ss MM-dd-yyyy\nTYPE@tag\tmsg\n".
+     */
+    void append(long time, int priority, String type, String tag, String msg) {
+        final long syncTo;
+        synchronized (this) {
+            syncTo = appendRecord(time, priority, type, tag, msg, null);
+        }
+        if (syncTo > 0) sync(syncTo);
+    }
+
+    /**
+     * Appends an event, keeping the fields of a structured event apart in the
+     * JSON and logfmt formats.
+     *
+     * @return number of bytes the record took.
+     */
+    int append(LogEvent event) {
+        final long syncTo;
+        final long bytes;
+        synchronized (this) {
+            final long before = written + buffer.position();
+            syncTo = appendRecord(event.timeMillis, event.priority, Log.logLevelToString(event.priority), event.getScope(),
+                    null, event);
+            bytes = written + buffer.position() - before;
+        }
+        if (syncTo > 0) sync(syncTo);
+        return (int) Math.max(0, Math.min(bytes, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the value of {@link #written} that has to be forced before the
+     * caller returns, or 0.
+     */
+    private long appendRecord(long time, int priority, String type, String tag, String msg, LogEvent event) {
+        // Shared files are rolled over under the lock, when a batch is written.
+        if (!shared) rollIfNeeded(time);
+        final int format = startFile(time);
+        recordStart = buffer.position();
+        recordOffset = size + recordStart;
+        try {
+            return encodeRecord(format, time, priority, type, tag, msg, event);
+        } finally {
+            recordStart = -1;
+            recordOffset = -1;
+        }
+    }
+
+    private long encodeRecord(int format, long time, int priority, String type, String tag, String msg, LogEvent event) {
+        if (format == Log.FORMAT_JSON || format == Log.FORMAT_LOGFMT) {
+            return putStructured(format, time, type, tag, msg, event) ? afterRecord(priority) : 0;
+        }
+        if (event != null) msg = event.getMessage();
+        if (format == Log.FORMAT_BINARY) {
+            return putBinary(time, priority, tag, msg) ? afterRecord(priority) : 0;
+        }
+        final long offset = size + buffer.position();
+        final int length = timestamps.formatDateTime(time, header, HEADER_PREFIX.length());
+        if (!put(header, length)
+                || !put('\n') || !put(type) || !put('@') || !put(tag)
+                || !put('\t') || !put(msg) || !put('\n')) {
+            return 0;
+        }
+        if (!shared) indexRecord(offset, time, priority);
+        return afterRecord(priority);
+    }
+
+    private void indexRecord(long offset, long time, int priority) {
+        if (blockRecords == 0) {
+            blockStart = offset;
+            blockMinTime = time;
+            blockMaxTime = time;
+            blockLevels = 0;
+        } else if (time < blockMinTime) {
+            blockMinTime = time;
+        } else if (time > blockMaxTime) {
+            blockMaxTime = time;
+        }
+        blockLevels |= 1 << (priority & 31);
+        if (++blockRecords >= LogIndex.BLOCK_RECORDS || size + buffer.position() - blockStart >= LogIndex.BLOCK_BYTES) {
+            endBlock();
+        }
+    }
+
+    /**
+     * Queues the index entry of the current block, if it has records.
+     */
+    private void endBlock() {
+        if (blockRecords == 0) return;
+        if (pendingIndex.remaining() < LogIndex.ENTRY_SIZE && !drain()) return;
+        pendingIndex.putLong(blockStart).putLong(size + buffer.position())
+                .putLong(blockMinTime).putLong(blockMaxTime).putInt(blockLevels);
+        blockRecords = 0;
+    }
+
+    private long afterRecord(int priority) {
+        // The record is complete, so a shared drain may write it.
+        recordStart = -1;
+        recordOffset = -1;
+        final Log.Config config = Log.getConfig();
+        final int durability = config.getDurability();
+        final long now = System.currentTimeMillis();
+        if (durability == Log.DURABILITY_ON_LEVEL && priority >= config.getSyncLevel()) {
+            drain();
+            lastFlush = now;
+            return written;
+        }
+        if (buffer.position() >= config.getFlushThreshold() || now - lastFlush >= config.getFlushInterval()) {
+            drain();
+            lastFlush = now;
+        }
+        // Also forces drains made mid-record because the buffer was full.
+        if (durability == Log.DURABILITY_EVERY_BATCH && written > syncRequested) {
+            syncRequested = written;
+            return written;
+        }
+        return 0;
+    }
+
+    /**
+     * Forces the channel unless a force that covers {@code target} bytes has
+     * already completed. Never called with the appender lock held.
+     */
+    private void sync(long target) {
+        synchronized (syncLock) {
+            if (synced >= target) return;
+            final long upTo = written;
+            final FileChannel current = channel;
+            final long start = LogStats.start();
+            try {
+                if (current != null) {
+                    current.force(false);
+                    LogStats.count(LogStats.FILE_SYNCS);
+                    LogStats.record(LogStats.SYNC_LATENCY, start);
+                }
+            } catch (ClosedChannelException e) {
+                // Rolled over or closed meanwhile; close() forced it.
+            } catch (IOException e) {
+                if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to sync " + file, e);
+                return;
+            }
+            synced = upTo;
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Called by the flusher thread: syncs what was written since the last force
+     * once {@link Log.Config#getSyncInterval()} has passed, or at once for
+     * {@link Log#DURABILITY_EVERY_BATCH}.
+     */
+    private void syncIfDue(long now) {
+        final Log.Config config = Log.getConfig();
+        final int durability = config.getDurability();
+        final long target = written;
+        final boolean due;
+        synchronized (syncLock) {
+            due = synced < target && (durability == Log.DURABILITY_EVERY_BATCH
+                    || durability == Log.DURABILITY_PERIODIC && now - lastSync >= config.getSyncInterval());
+        }
+        if (due) sync(target);
+    }
+
+    synchronized void flush() {
+        LogStats.count(LogStats.FILE_FLUSHES);
+        drain();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    synchronized void close() {
+        endBlock();
+        drain();
+        if (indexChannel != null) {
+            try {
+                indexChannel.close();
+            } catch (IOException ignored) {
+            }
+            indexChannel = null;
+        }
+        if (lockChannel != null) {
+            try {
+                lockChannel.close();
+            } catch (IOException ignored) {
+            }
+            lockChannel = null;
+        }
+        if (channel != null) {
+            try {
+                if (Log.getConfig().getDurability() != Log.DURABILITY_NONE) channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to close " + file, e);
+            }
+            channel = null;
+        }
+    }
+
+    private void rollIfNeeded(long time) {
+        final Log.Config config = Log.getConfig();
+        final long maxFileSize = config.getMaxFileSize();
+        final boolean full = maxFileSize > 0 && size + buffer.position() >= maxFileSize;
+        final boolean nextDay = config.isDailyRollover() && time >= rollAt;
+        if (!full && !nextDay) return;
+        if (size + buffer.position() == 0) {
+            rollAt = startOfNextDay(time);
+            return;
+        }
+        if (!isRollRetryDue()) return;
+        rollOver(time);
+    }
+
+    /**
+     * Makes sure the current file is in the configured format, rolling it over
+     * first if it was started in another one.
+     *
+     * @return the format of the current file.
+     */
+    private int startFile(long time) {
+        int wanted = Log.getConfig().getFileFormat();
+        if (shared) {
+            // Binary records depend on earlier ones written by the same process.
+            if (wanted == Log.FORMAT_BINARY) wanted = Log.FORMAT_TEXT;
+            format = wanted;
+            return format;
+        }
+        if (format == wanted) return format;
+        if (format != FORMAT_UNKNOWN) {
+            rollOver(time);
+            if (format != FORMAT_UNKNOWN) return format;
+        }
+
+        if (wanted == Log.FORMAT_BINARY) {
+            ensure(BinaryLogFormat.MAGIC.length + 1);
+            buffer.put(BinaryLogFormat.MAGIC);
+            buffer.put((byte) BinaryLogFormat.VERSION);
+        }
+        format = wanted;
+        return format;
+    }
+
+    private void rollOver(long time) {
+        close();
+        final File segment = LogArchiver.archiveFile(file, time);
+        if (!file.renameTo(segment)) {
+            if (Log.DEBUGGING) android.util.Log.w("Log", "Unable to roll over " + file, null);
+            // Keep appending to the file rather than reopening it for every record.
+            rollAt = startOfNextDay(time);
+            rollRetryAt = System.currentTimeMillis() + ROLL_RETRY_MILLIS;
+            return;
+        }
+        rollRetryAt = 0;
+        if (indexFile.exists() && !indexFile.renameTo(LogIndex.indexFile(segment))) indexFile.delete();
+        size = 0;
+        rollAt = startOfNextDay(time);
+        format = FORMAT_UNKNOWN;
+        tagIds.clear();
+        lastTime = -1;
+        LogArchiver.rolled(file, segment);
+    }
+
+    private boolean isRollRetryDue() {
+        return rollRetryAt == 0 || System.currentTimeMillis() >= rollRetryAt;
+    }
+
+    private static long startOfNextDay(long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private boolean putBinary(long time, int priority, String tag, String msg) {
+        if (tag == null) tag = "null";
+        if (msg == null) msg = "null";
+
+        if (lastTime < 0 || time < lastTime) {
+            if (!ensure(1 + MAX_VARINT_BYTES)) return false;
+            buffer.put((byte) BinaryLogFormat.BASE);
+            putVarint(time);
+            lastTime = time;
+        }
+
+        Integer id = tagIds.get(tag);
+        if (id == null) {
+            if (tagIds.size() >= BinaryLogFormat.MAX_DICTIONARY_SIZE) tagIds.clear();
+            id = tagIds.size();
+            tagIds.put(tag, id);
+            if (!ensure(1 + MAX_VARINT_BYTES)) return false;
+            buffer.put((byte) BinaryLogFormat.DICT);
+            putVarint(id);
+            if (!putString(tag)) return false;
+        }
+
+        if (!ensure(2 + 2 * MAX_VARINT_BYTES)) return false;
+        buffer.put((byte) BinaryLogFormat.EVENT);
+        putVarint(time - lastTime);
+        buffer.put((byte) priority);
+        putVarint(id);
+        lastTime = time;
+        return putString(msg);
+    }
+
+    private boolean putStructured(int format, long time, String type, String tag, String msg, LogEvent event) {
+        KeyValues fields = null;
+        String error = null;
+        if (event != null) {
+            msg = event.getText();
+            fields = event.fields();
+            if (event.throwable != null) error = StackTraceRenderer.render(event.throwable);
+        }
+        line.setLength(0);
+        if (format == Log.FORMAT_JSON) {
+            StructuredFormat.appendJson(line, time, type, tag, msg, fields, error);
+        } else {
+            StructuredFormat.appendLogfmt(line, time, type, tag, msg, fields, error);
+        }
+        final boolean written = put(line.append('\n'));
+        if (line.capacity() > MAX_RETAINED_LINE) line = new StringBuilder(256);
+        return written;
+    }
+
+    private boolean putString(String value) {
+        if (!ensure(MAX_VARINT_BYTES)) return false;
+        putVarint(Utf8.length(value));
+        return put(value);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private boolean ensure(int bytes) {
+        return buffer.remaining() >= bytes || drain();
+    }
+
+    private boolean put(char c) {
+        if (buffer.remaining() < Utf8.MAX_CHAR_BYTES && !drain()) return false;
+        Utf8.put(buffer, c, 0);
+        return true;
+    }
+
+    private boolean put(char[] chars, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.remaining() < Utf8.MAX_CHAR_BYTES && !drain()) return false;
+            Utf8.put(buffer, chars[i], 0);
+        }
+        return true;
+    }
+
+    private boolean put(CharSequence chars) {
+        if (chars == null) chars = "null";
+        final int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            if (buffer.remaining() < Utf8.MAX_CHAR_BYTES && !drain()) return false;
+            final char c = chars.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                Utf8.put(buffer, c, chars.charAt(++i));
+            } else {
+                Utf8.put(buffer, c, 0);
+            }
+        }
+        return true;
+    }
+
+    private synchronized void flushIfOlderThan(long now, long interval) {
+        if (buffer.position() > 0 && now - lastFlush >= interval) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes out the buffered bytes, opening the channel if needed. On failure the
+     * buffer is discarded so a broken file cannot wedge the caller, the file is cut
+     * back to the last whole record, and binary encoding starts over from a fresh
+     * time base and dictionary, as the ones it relied on may have been discarded.
+     */
+    private boolean drain() {
+        if (buffer.position() == 0) {
+            writeIndex();
+            return true;
+        }
+        if (shared) return drainShared();
+        buffer.flip();
+        final long start = LogStats.start();
+        // The record being encoded may have started in a buffer written earlier.
+        final long boundary = recordOffset >= 0 ? Math.min(size, recordOffset) : size;
+        try {
+            if (channel == null) {
+                channel = new FileOutputStream(file, true).getChannel();
+                LogStats.count(LogStats.FILE_OPENS);
+            }
+            while (buffer.hasRemaining()) {
+                final int count = channel.write(buffer);
+                size += count;
+                written += count;
+            }
+            LogStats.count(LogStats.FILE_WRITES);
+            LogStats.record(LogStats.WRITE_LATENCY, start);
+            writeIndex();
+            return true;
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to write " + file, e);
+            // The index must not describe records that were dropped.
+            blockRecords = 0;
+            pendingIndex.clear();
+            if (channel != null) {
+                try {
+                    if (size > boundary) {
+                        channel.truncate(boundary);
+                        size = boundary;
+                    }
+                } catch (IOException ignored) {
+                }
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+            // Later records must not refer to DICT and BASE records that were dropped.
+            tagIds.clear();
+            lastTime = -1;
+            if (size == 0) format = FORMAT_UNKNOWN;
+            return false;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes out queued index entries. A failure only leaves records unindexed,
+     * which {@link LogReader} scans.
+     */
+    private void writeIndex() {
+        if (pendingIndex.position() == 0) return;
+        pendingIndex.flip();
+        try {
+            if (indexChannel == null) {
+                indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+                // An entry cut short by a crash would misalign every later one.
+                final long length = indexChannel.size();
+                indexChannel.truncate(length - length % LogIndex.ENTRY_SIZE);
+                indexChannel.position(indexChannel.size());
+            }
+            while (pendingIndex.hasRemaining()) {
+                indexChannel.write(pendingIndex);
+            }
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to write " + indexFile, e);
+            if (indexChannel != null) {
+                try {
+                    indexChannel.close();
+                } catch (IOException ignored) {
+                }
+                indexChannel = null;
+            }
+        } finally {
+            pendingIndex.clear();
+        }
+    }
+
+    /**
+     * Writes the whole records in the buffer holding the lock, rolling the file
+     * over first if it is due; the record being encoded stays buffered. On
+     * failure everything buffered is discarded, as in {@link #drain()}.
+     */
+    private boolean drainShared() {
+        final int end = recordStart >= 0 ? recordStart : buffer.position();
+        if (end == 0) {
+            // The record being encoded does not fit the buffer on its own.
+            final ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+            return true;
+        }
+        final int position = buffer.position();
+        final long start = LogStats.start();
+        FileLock lock = null;
+        boolean success = false;
+        try {
+            if (lockChannel == null) {
+                lockChannel = new RandomAccessFile(new File(file.getPath() + LOCK_SUFFIX), "rw").getChannel();
+            }
+            lock = lockChannel.lock(0, GENERATION_BYTES, false);
+            final long current = readGeneration();
+            if (generation >= 0 && current != generation) {
+                // Another process rolled the file over; the channel is on a segment.
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                // The new file was started today, so it is not due until tomorrow.
+                rollAt = startOfNextDay(System.currentTimeMillis());
+            }
+            generation = current;
+            if (channel == null) {
+                channel = new FileOutputStream(file, true).getChannel();
+                LogStats.count(LogStats.FILE_OPENS);
+            }
+            size = channel.size();
+            final long now = System.currentTimeMillis();
+            final Log.Config config = Log.getConfig();
+            if (size > 0 && (config.getMaxFileSize() > 0 && size >= config.getMaxFileSize()
+                    || config.isDailyRollover() && now >= rollAt) && isRollRetryDue()) {
+                rollOverShared(now);
+            }
+
+            buffer.position(0);
+            buffer.limit(end);
+            while (buffer.hasRemaining()) {
+                final int count = channel.write(buffer);
+                size += count;
+                written += count;
+            }
+            LogStats.count(LogStats.FILE_WRITES);
+            LogStats.record(LogStats.WRITE_LATENCY, start);
+            success = true;
+            return true;
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to write " + file, e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+            return false;
+        } finally {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException ignored) {
+                }
+            }
+            buffer.clear();
+            if (success && position > end) {
+                // Keep the start of the record being encoded for the next batch.
+                System.arraycopy(buffer.array(), end, buffer.array(), 0, position - end);
+                buffer.position(position - end);
+                recordStart = 0;
+            } else {
+                if (recordStart >= 0) recordStart = 0;
+                if (buffer.capacity() > capacity) buffer = ByteBuffer.allocate(capacity);
+            }
+        }
+    }
+
+    /**
+     * Rolls the shared file over; called holding the lock.
+     */
+    private void rollOverShared(long time) throws IOException {
+        if (Log.getConfig().getDurability() != Log.DURABILITY_NONE) channel.force(false);
+        channel.close();
+        channel = null;
+        final File segment = LogArchiver.archiveFile(file, time);
+        if (file.renameTo(segment)) {
+            writeGeneration(++generation);
+            LogArchiver.rolled(file, segment);
+            rollRetryAt = 0;
+        } else {
+            if (Log.DEBUGGING) android.util.Log.w("Log", "Unable to roll over " + file, null);
+            rollRetryAt = System.currentTimeMillis() + ROLL_RETRY_MILLIS;
+        }
+        rollAt = startOfNextDay(time);
+        channel = new FileOutputStream(file, true).getChannel();
+        LogStats.count(LogStats.FILE_OPENS);
+        size = channel.size();
+    }
+
+    private long readGeneration() throws IOException {
+        generationBytes.clear();
+        while (generationBytes.hasRemaining()) {
+            if (lockChannel.read(generationBytes, generationBytes.position()) <= 0) return 0;
+        }
+        return generationBytes.getLong(0);
+    }
+
+    private void writeGeneration(long value) throws IOException {
+        generationBytes.clear();
+        generationBytes.putLong(0, value);
+        while (generationBytes.hasRemaining()) {
+            lockChannel.write(generationBytes, generationBytes.position());
+        }
+    }
+
+    /**
+     * Locks the archive region of {@code file}'s lock file, so one process at a
+     * time compresses and prunes a shared log's segments. The lock is polled for:
+     * the kernel tracks record locks per process, so an archiver blocked here
+     * while another thread of its process waits for the append region could be
+     * reported as a deadlock, failing that thread's write.
+     *
+     * @return the lock, to be released with its channel, or null if the log is
+     * not shared or the lock could not be taken.
+     */
+    static FileLock lockArchives(File file) {
+        if (Log.getConfig().getMultiProcessMode() != Log.MULTI_PROCESS_LOCKED) return null;
+        try {
+            final FileChannel channel = new RandomAccessFile(new File(file.getPath() + LOCK_SUFFIX), "rw").getChannel();
+            try {
+                FileLock lock;
+                while ((lock = channel.tryLock(ARCHIVE_LOCK_POSITION, 1, false)) == null) {
+                    Thread.sleep(ARCHIVE_LOCK_POLL_MILLIS);
+                }
+                return lock;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                channel.close();
+                return null;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to lock archives of " + file, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * Key-value fields attached to a structured log event, see {@link EventBuilder}.
+ * Values are kept unboxed in parallel arrays that grow as needed and are reused
+ * once cleared, so a pooled builder or a ring buffer slot stops allocating once
+ * it has seen its largest event.
+ */
+final class KeyValues {
+
+    static final byte STRING = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte BOOLEAN = 3;
+    static final byte OBJECT = 4;
+
+    private String[] keys = new String[8];
+
+    private byte[] types = new byte[8];
+
+    private long[] numbers = new long[8];
+
+    private Object[] objects = new Object[8];
+
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    String key(int index) {
+        return keys[index];
+    }
+
+    byte type(int index) {
+        return types[index];
+    }
+
+    long longValue(int index) {
+        return numbers[index];
+    }
+
+    double doubleValue(int index) {
+        return Double.longBitsToDouble(numbers[index]);
+    }
+
+    /**
+     * @return the value, boxed for numbers and booleans.
+     */
+    Object value(int index) {
+        switch (types[index]) {
+            case LONG:
+                return numbers[index];
+            case DOUBLE:
+                return doubleValue(index);
+            case BOOLEAN:
+                return numbers[index] != 0;
+            default:
+                return objects[index];
+        }
+    }
+
+    void add(String key, String value) {
+        add(key, STRING, 0, value);
+    }
+
+    void add(String key, long value) {
+        add(key, LONG, value, null);
+    }
+
+    void add(String key, double value) {
+        add(key, DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+
+    void add(String key, boolean value) {
+        add(key, BOOLEAN, value ? 1 : 0, null);
+    }
+
+    void add(String key, Object value) {
+        add(key, OBJECT, 0, value);
+    }
+
+    private void add(String key, byte type, long number, Object object) {
+        if (size == keys.length) grow(size * 2);
+        keys[size] = key;
+        types[size] = type;
+        numbers[size] = number;
+        objects[size] = object;
+        size++;
+    }
+
+    void copyFrom(KeyValues other) {
+        clear();
+        if (keys.length < other.size) grow(other.size);
+        System.arraycopy(other.keys, 0, keys, 0, other.size);
+        System.arraycopy(other.types, 0, types, 0, other.size);
+        System.arraycopy(other.numbers, 0, numbers, 0, other.size);
+        System.arraycopy(other.objects, 0, objects, 0, other.size);
+        size = other.size;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+            objects[i] = null;
+        }
+        size = 0;
+    }
+
+    private void grow(int capacity) {
+        final String[] newKeys = new String[capacity];
+        final byte[] newTypes = new byte[capacity];
+        final long[] newNumbers = new long[capacity];
+        final Object[] newObjects = new Object[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        System.arraycopy(types, 0, newTypes, 0, size);
+        System.arraycopy(numbers, 0, newNumbers, 0, size);
+        System.arraycopy(objects, 0, newObjects, 0, size);
+        keys = newKeys;
+        types = newTypes;
+        numbers = newNumbers;
+        objects = newObjects;
+    }
+}
@@ -23,18 +23,17 @@ import android.content.pm.ApplicationInfo;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Log {
 
 
-    private static final boolean DEBUGGING = true;
+    static final boolean DEBUGGING = true;
     /**
      * Priority constant for the println method; use Log.v.
      */
@@ -65,11 +64,113 @@ public final class Log {
      */
     public static final int ASSERT = 7;
 
-    private static Log helper;
+    /**
+     * Overflow policy for the async writer: callers wait for a free slot.
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /**
+     * Overflow policy for the async writer: the oldest queued event is discarded.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /**
+     * Overflow policy for the async writer: events below the overflow level are
+     * discarded, the rest wait for a free slot.
+     */
+    public static final int OVERFLOW_DROP_BELOW_LEVEL = 2;
+
+    /**
+     * Caller location mode: append "File.java:line" to the scope while logcat logs
+     * {@link #DEBUG} or lower.
+     */
+    public static final int CALLER_LOCATION_AUTO = 0;
+
+    /**
+     * Caller location mode: always append "File.java:line" to the scope.
+     */
+    public static final int CALLER_LOCATION_ALWAYS = 1;
+
+    /**
+     * Caller location mode: never capture the caller's location.
+     */
+    public static final int CALLER_LOCATION_NEVER = 2;
+
+    /**
+     * File format: "Logged at ..." text records.
+     */
+    public static final int FORMAT_TEXT = 0;
+
+    /**
+     * File format: compact binary records, readable with {@link LogDecoder}.
+     */
+    public static final int FORMAT_BINARY = 1;
+
+    /**
+     * File format: one JSON object per line, see {@link #at(int)}.
+     */
+    public static final int FORMAT_JSON = 2;
+
+    /**
+     * File format: one logfmt line of key=value pairs per record, see {@link #at(int)}.
+     */
+    public static final int FORMAT_LOGFMT = 3;
+
+    /**
+     * Durability: log files are never forced to storage; the OS writes them back
+     * in its own time.
+     */
+    public static final int DURABILITY_NONE = 0;
 
-    private static Context mContext;
+    /**
+     * Durability: written records are forced to storage every
+     * {@link Config#getSyncInterval()} milliseconds by the flusher thread.
+     */
+    public static final int DURABILITY_PERIODIC = 1;
+
+    /**
+     * Durability: a record at or above {@link Config#getSyncLevel()} is written and
+     * forced, together with everything buffered before it, before the file sink
+     * returns; in async mode that happens on the writer thread.
+     */
+    public static final int DURABILITY_ON_LEVEL = 2;
+
+    /**
+     * Durability: every batch written to a log file is forced to storage, by the
+     * log call that wrote it, including batches written because a record did not
+     * fit the buffer, or by the flusher thread for its own writes.
+     */
+    public static final int DURABILITY_EVERY_BATCH = 3;
+
+    /**
+     * Multi-process mode: every process appends to the same file without
+     * coordination. Only safe when a single process logs to the file.
+     */
+    public static final int MULTI_PROCESS_NONE = 0;
+
+    /**
+     * Multi-process mode: processes other than the main one write their own
+     * {@code <name>-<process>} file, rolled and archived on its own; read them
+     * together with {@link LogReader#withProcessFiles(java.io.File)}, which merges
+     * records by time. Processes never wait for each other.
+     */
+    public static final int MULTI_PROCESS_SEGMENTS = 1;
+
+    /**
+     * Multi-process mode: processes share one file and take a lock on
+     * {@code <name>.lock} once per written batch, which only ever holds whole
+     * records. Rolling over happens under the lock. Binary files fall back to
+     * text, and no {@link LogIndex} is kept.
+     */
+    public static final int MULTI_PROCESS_LOCKED = 2;
+
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+    private static volatile Log helper;
+
+    private static volatile Context mContext;
 
-    private static String log_name;
+    private static volatile String log_name;
 
     /**
      * config is initially set to BaseConfig() with sensible defaults, then
@@ -85,10 +186,97 @@ public final class Log {
      */
     private static Print print = new Print();
 
-    public static synchronized Log getInstance(Context context, String name) {
+    private static final Sink LOGCAT_SINK = new LogcatSink();
+
+    private static final Sink FILE_SINK = new FileSink();
+
+    private static final Sink MAPPED_SINK = new MappedSink();
+
+    private static volatile MemorySink memorySink;
+
+    private static boolean crashHandlerInstalled;
+
+    /**
+     * Replaced, never modified, under the {@link #CONFIG} lock, so dispatch reads
+     * it without locking.
+     */
+    private static volatile Sink[] sinks = {LOGCAT_SINK, FILE_SINK};
+
+    /**
+     * Levels and scope read by every log call, replaced as a whole under the
+     * {@link #CONFIG} lock, so a call takes no lock and never sees half a change.
+     */
+    private static volatile Settings settings = new Settings(CONFIG);
+
+    private static volatile AsyncDispatcher dispatcher;
+
+    private static long droppedBeforeRestart;
+
+    private static final ConcurrentHashMap<String, Logger> LOGGERS = new ConcurrentHashMap<String, Logger>();
+
+    /**
+     * File sink events logged before the log file was named and opened.
+     */
+    private static final PreInitBuffer PRE_INIT = new PreInitBuffer();
+
+    private static final AtomicBoolean INIT_STARTED = new AtomicBoolean();
+
+    /**
+     * Sets the log file name. The first call also sets the context files are
+     * written under; racing first calls each pass an application's context, so
+     * whichever wins is fine. The file is opened on a background thread, and
+     * events logged until then, also before this call, are written first.
+     */
+    public static Log getInstance(Context context, String name) {
         log_name = name;
-        if (mContext == null) helper = new Log(context);
-        return helper;
+        Log instance = helper;
+        if (instance == null) {
+            instance = new Log(context);
+            helper = instance;
+        }
+        if (INIT_STARTED.compareAndSet(false, true)) {
+            runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    openFile();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Opens the log file and writes the events held since startup ahead of
+     * later ones. Runs on the "Log-init" thread, or in {@link #flush(long)} or
+     * the file sink if that comes first. Without a log file the held events are
+     * discarded once {@link PreInitBuffer#WINDOW_MILLIS} have passed.
+     */
+    private static void openFile() {
+        if (!PRE_INIT.isOpen()) return;
+        final Context context = mContext;
+        final String name = log_name;
+        if (context == null || name == null) {
+            if (PRE_INIT.isExpired()) PRE_INIT.replay(null);
+            return;
+        }
+        PRE_INIT.replay(FileAppender.get(context, name));
+    }
+
+    /**
+     * Runs one-off startup work on a low-priority "Log-init" thread, so it does
+     * not hold up the thread configuring logging, usually the main thread.
+     */
+    static void runInBackground(final Runnable task) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                task.run();
+            }
+        }, "Log-init");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
     }
 
     public Log(Context context) {
@@ -104,18 +292,369 @@ public final class Log {
     }
 
     public static int println(int priority, String tag, String msg) {
-        writeToFile(mContext, logLevelToString(priority), Print.getScope(), msg);
-        return print.println(priority, msg);
+        return log(mContext, priority, tag, msg, null);
+    }
+
+    /**
+     * Logs from a call site whose scope was resolved once up front, so no stack
+     * is captured for this call.
+     */
+    public static int println(CallSite site, int priority, String msg) {
+        return println(site, priority, msg, null);
+    }
+
+    /**
+     * Logs from a call site whose scope was resolved once up front, so no stack
+     * is captured for this call.
+     */
+    public static int println(CallSite site, int priority, String msg, Throwable tr) {
+        if (priority < enabledLevel(null)) return LogStats.filtered(priority);
+        return enqueue(mContext, priority, null, site.scope, null, msg, tr);
+    }
+
+    /**
+     * Starts a structured event at {@code priority}:
+     * {@code Log.at(Log.INFO).kv("user", id).kv("latencyMs", 12L).msg("done")}.
+     * Returns a builder that does nothing, without allocating, if no sink takes
+     * the priority.
+     */
+    public static EventBuilder at(int priority) {
+        if (priority < enabledLevel(null)) {
+            LogStats.filtered(priority);
+            return EventBuilder.DISABLED;
+        }
+        return EventBuilder.obtain(priority, null);
+    }
+
+    /**
+     * @return the logger for {@code tag}; the same instance for every call with
+     * an equal tag.
+     */
+    public static Logger forTag(String tag) {
+        final Logger logger = LOGGERS.get(tag);
+        if (logger != null) return logger;
+
+        // Published with its level, and never between a refresh's reads and writes.
+        synchronized (CONFIG) {
+            Logger created = LOGGERS.get(tag);
+            if (created == null) {
+                created = new Logger(tag);
+                created.level = enabledLevel(tag);
+                LOGGERS.put(tag, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Pushes the effective level of each tag to its {@link Logger}. Called under
+     * the {@link #CONFIG} lock after any change to sink or tag levels.
+     */
+    private static void refreshLoggers() {
+        for (Logger logger : LOGGERS.values()) {
+            logger.level = enabledLevel(logger.getTag());
+        }
+    }
+
+    /**
+     * @return a call site for the code calling this method. Keep it in a static
+     * field and pass it to {@link #println(CallSite, int, String)}.
+     */
+    public static CallSite callSite() {
+        LogStats.count(LogStats.STACK_CAPTURES);
+        return new CallSite(CallerLocation.resolve(settings.scope, new Throwable()));
+    }
+
+    /**
+     * @param location shown in place of "File.java:line", e.g. a method name.
+     */
+    public static CallSite callSite(String location) {
+        return new CallSite(settings.scope + "/" + location);
+    }
+
+    /**
+     * A log call site whose scope is resolved once instead of per call.
+     */
+    public static final class CallSite {
+        final String scope;
+
+        CallSite(String scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public String toString() {
+            return scope;
+        }
+    }
+
+    /**
+     * @return lowest priority any sink accepts from {@code tag}. Without tag
+     * levels this is {@link BaseConfig#enabledLevel}.
+     */
+    static int enabledLevel(String tag) {
+        return settings.enabledLevel(tag);
+    }
+
+    /**
+     * @return the logcat level for {@code tag}, taking tag levels into account.
+     */
+    static int logcatLevel(String tag) {
+        return settings.logcatLevel(tag);
+    }
+
+    /**
+     * What a log call needs from {@link #CONFIG}, copied when it changes.
+     */
+    private static final class Settings {
+        final int enabledLevel;
+        final int otherSinksLevel;
+        final int logcatLevel;
+        final boolean callerLocation;
+        final String scope;
+
+        Settings(BaseConfig config) {
+            enabledLevel = config.enabledLevel;
+            otherSinksLevel = config.otherSinksLevel;
+            logcatLevel = config.minimumLogLevel;
+            callerLocation = config.wantsCallerLocation();
+            scope = config.scope;
+        }
+
+        int enabledLevel(String tag) {
+            final int override = CONFIG.tagLevels.resolve(tag);
+            return override == TagLevels.NONE ? enabledLevel : Math.min(override, otherSinksLevel);
+        }
+
+        int logcatLevel(String tag) {
+            final int override = CONFIG.tagLevels.resolve(tag);
+            return override == TagLevels.NONE ? logcatLevel : override;
+        }
+    }
+
+    /**
+     * Copies the settings log calls read; called under the {@link #CONFIG} lock.
+     */
+    private static void publishSettings() {
+        settings = new Settings(CONFIG);
+    }
+
+    /**
+     * Captures a log call and either queues it for the async writer or dispatches
+     * it on the caller's thread. Calls below every sink's level return before the
+     * scope is resolved or anything is allocated.
+     *
+     * @return in async mode 1 if the event was queued and 0 if the overflow policy
+     * dropped it, otherwise the result of {@link Print#println(LogEvent)}.
+     */
+    private static int log(Context context, int priority, String tag, String msg, Throwable tr) {
+        final Settings current = settings;
+        if (priority < current.enabledLevel(tag)) return LogStats.filtered(priority);
+        return enqueue(context, priority, tag, current.scope, captureCallSite(current), msg, tr);
+    }
+
+    /**
+     * Logs for a {@link Logger} that already checked its level.
+     */
+    static int logFor(String tag, int priority, String msg, Throwable tr) {
+        return enqueue(mContext, priority, tag, settings.scope, captureCallSite(), msg, tr);
+    }
+
+    /**
+     * Like {@link #logFor(String, int, String, Throwable)}, formatting {@code format}
+     * only once the event reaches a sink.
+     */
+    static int logLazilyFor(String tag, int priority, String format, Object[] args) {
+        return enqueue(mContext, priority, tag, settings.scope, captureCallSite(), format, null,
+                LogEvent.ARGS_OBJECTS, args, 0);
+    }
+
+    /**
+     * @return the stack of the log call if a caller location is wanted, else null.
+     */
+    private static Throwable captureCallSite() {
+        return captureCallSite(settings);
+    }
+
+    private static Throwable captureCallSite(Settings current) {
+        if (!current.callerLocation) return null;
+        LogStats.count(LogStats.STACK_CAPTURES);
+        return new Throwable();
+    }
+
+    /**
+     * @param callSite captured on the caller's thread and only resolved into a
+     *                 location once a sink asks for {@link LogEvent#getScope()}.
+     */
+    private static int enqueue(Context context, int priority, String tag, String scope, Throwable callSite, String msg, Throwable tr) {
+        return enqueue(context, priority, tag, scope, callSite, msg, tr, LogEvent.ARGS_NONE, null, 0);
+    }
+
+    /**
+     * @param argsKind  how {@code msg} is expanded, see {@link LogEvent#argsKind}.
+     */
+    private static int enqueue(Context context, int priority, String tag, String scope, Throwable callSite, String msg, Throwable tr,
+                               int argsKind, Object args, long primitive) {
+        final LogLimiter limiter = CONFIG.limiter;
+        if (limiter.isActive()) {
+            String site = scope;
+            Throwable stack = callSite;
+            if (tag == null && stack != null) {
+                // Located once here instead of again by the sinks.
+                site = CallerLocation.resolve(scope, stack);
+                stack = null;
+            }
+            // Untagged calls without a captured stack share their scope: a
+            // capture just to key them would cost the hot sites being limited.
+            final String key = tag != null ? tag : site;
+            if (!limiter.admit(key, priority, msg, tr, argsKind == LogEvent.ARGS_NONE)) {
+                LogStats.suppressed(priority);
+                return 0;
+            }
+            LogStats.accepted(priority);
+            return capture(context, priority, tag, site, stack, msg, tr, argsKind, args, primitive);
+        }
+        LogStats.accepted(priority);
+        return capture(context, priority, tag, scope, callSite, msg, tr, argsKind, args, primitive);
+    }
+
+    /**
+     * Logs a structured event finished by {@link EventBuilder#msg(String)}.
+     */
+    static int logStructured(int priority, String tag, String msg, Throwable tr, KeyValues fields) {
+        return enqueue(mContext, priority, tag, settings.scope, captureCallSite(), msg, tr,
+                LogEvent.ARGS_FIELDS, fields, 0);
+    }
+
+    /**
+     * Logs what {@link LogLimiter} held back for {@code key}, bypassing it.
+     */
+    static void logSummary(String key, int priority, String msg) {
+        capture(mContext, priority, key, settings.scope, null, msg, null, LogEvent.ARGS_NONE, null, 0);
+    }
+
+    private static int capture(Context context, int priority, String tag, String scope, Throwable callSite, String msg, Throwable tr,
+                               int argsKind, Object args, long primitive) {
+        final AsyncDispatcher async = dispatcher;
+        if (async != null) {
+            final long seq = async.claim(priority);
+            if (seq == AsyncDispatcher.DROPPED) return 0;
+            if (seq != AsyncDispatcher.CLOSED) {
+                final LogEvent slot = async.slot(seq);
+                slot.set(context, priority, tag, scope, callSite, msg, tr);
+                slot.copyArguments(argsKind, args, primitive);
+                async.publish(seq);
+                return 1;
+            }
+        }
+        final LogEvent event = new LogEvent();
+        event.set(context, priority, tag, scope, callSite, msg, tr);
+        event.setArguments(argsKind, args, primitive);
+        return dispatch(event);
+    }
+
+    /**
+     * Like {@link #log(Context, int, String, String, Throwable)}, with a message
+     * that is only formatted once the event reaches a sink.
+     */
+    private static int logLazily(int priority, String tag, String msg, int argsKind, Object args, long primitive) {
+        if (priority < enabledLevel(tag)) return LogStats.filtered(priority);
+        return enqueue(mContext, priority, tag, settings.scope, captureCallSite(), msg, null,
+                argsKind, args, primitive);
+    }
+
+    /**
+     * Hands a captured event to every sink whose level it meets. Runs on the async
+     * writer thread when {@link Config#isAsync()} is set.
+     */
+    static int dispatch(LogEvent event) {
+        final Sink[] chain = sinks;
+        int result = 0;
+        for (Sink sink : chain) {
+            if (event.priority < sink.levelFor(event)) continue;
+            try {
+                final LogFormatter formatter = sink.getFormatter();
+                final int written = sink.append(event, formatter != null ? event.render(formatter) : null);
+                LogStats.wrote(sink, written);
+                result = Math.max(result, written);
+            } catch (RuntimeException e) {
+                if (DEBUGGING) android.util.Log.e("Log", "Sink " + sink + " failed", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a sink after the built-in logcat and file sinks; adding one twice has
+     * no effect.
+     */
+    public static void addSink(Sink sink) {
+        synchronized (CONFIG) {
+            final Sink[] current = sinks;
+            for (Sink existing : current) {
+                if (existing == sink) return;
+            }
+            final Sink[] next = new Sink[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = sink;
+            sinks = next;
+            updateEnabledLevel();
+        }
+    }
+
+    /**
+     * @return whether the sink was registered.
+     */
+    public static boolean removeSink(Sink sink) {
+        synchronized (CONFIG) {
+            final Sink[] current = sinks;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != sink) continue;
+                final Sink[] next = new Sink[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                sinks = next;
+                updateEnabledLevel();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the registered sinks, in dispatch order.
+     */
+    public static Sink[] getSinks() {
+        return sinks.clone();
+    }
+
+    /**
+     * Recomputes the level checked by every log call as the lowest sink level.
+     */
+    static void updateEnabledLevel() {
+        synchronized (CONFIG) {
+            int logcat = Log.ASSERT + 1;
+            int others = Log.ASSERT + 1;
+            for (Sink sink : sinks) {
+                if (sink == LOGCAT_SINK) {
+                    logcat = sink.getLevel();
+                } else {
+                    others = Math.min(others, sink.getLevel());
+                }
+            }
+            CONFIG.otherSinksLevel = others;
+            CONFIG.enabledLevel = Math.min(logcat, others);
+            publishSettings();
+            refreshLoggers();
+        }
     }
 
     public static int v(Throwable tr) {
-        writeToFile(mContext, "VERBOSE", Print.getScope(), getStackTraceString(tr));
-        return print.println(Log.VERBOSE, getStackTraceString(tr));
+        return log(mContext, Log.VERBOSE, null, null, tr);
     }
 
     public static int v(String msg) {
-        writeToFile(mContext, "VERBOSE", Print.getScope(), msg);
-        return print.println(Log.VERBOSE, msg);
+        return log(mContext, Log.VERBOSE, null, msg, null);
     }
 
     /**
@@ -126,8 +665,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int v(String tag, String msg) {
-        writeToFile(mContext, "VERBOSE", Print.getScope(), msg);
-        return print.println(Log.VERBOSE, msg);
+        return log(mContext, Log.VERBOSE, tag, msg, null);
     }
 
     /**
@@ -138,8 +676,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int v(Context context, String tag, String msg) {
-        writeToFile(context, "VERBOSE", Print.getScope(), msg);
-        return print.println(Log.VERBOSE, msg);
+        return log(context, Log.VERBOSE, tag, msg, null);
     }
 
     /**
@@ -151,8 +688,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int v(String tag, String msg, Throwable tr) {
-        writeToFile(mContext, "VERBOSE", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.VERBOSE, msg + "\n" + Log.getStackTraceString(tr));
+        return log(mContext, Log.VERBOSE, tag, msg, tr);
     }
 
     /**
@@ -164,8 +700,62 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int v(Context context, String tag, String msg, Throwable tr) {
-        writeToFile(context, "VERBOSE", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.VERBOSE, msg + "\n" + Log.getStackTraceString(tr));
+        return log(context, Log.VERBOSE, tag, msg, tr);
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message formatted with {@link String#format}. Formatting is
+     * deferred until the level check passed, and to the writer thread in async mode.
+     *
+     * @param format The message format.
+     * @param args   The format arguments.
+     */
+    public static int verbosef(String format, Object... args) {
+        return logLazily(Log.VERBOSE, null, format, LogEvent.ARGS_OBJECTS, args, 0);
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message formatted with a single {@code int}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int verbosef(String format, int arg) {
+        return logLazily(Log.VERBOSE, null, format, LogEvent.ARGS_INT, null, arg);
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message formatted with a single {@code long}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int verbosef(String format, long arg) {
+        return logLazily(Log.VERBOSE, null, format, LogEvent.ARGS_LONG, null, arg);
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int v(Supplier msg) {
+        return logLazily(Log.VERBOSE, null, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Send a {@link #VERBOSE} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int v(String tag, Supplier msg) {
+        return logLazily(Log.VERBOSE, tag, null, LogEvent.ARGS_SUPPLIER, msg, 0);
     }
 
     /**
@@ -174,8 +764,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int d(Throwable tr) {
-        writeToFile(mContext, "DEBUG", Print.getScope(), getStackTraceString(tr));
-        return print.println(Log.DEBUG, getStackTraceString(tr));
+        return log(mContext, Log.DEBUG, null, null, tr);
     }
 
     /**
@@ -184,8 +773,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int d(String msg) {
-        writeToFile(mContext, "DEBUG", Print.getScope(), msg);
-        return print.println(Log.DEBUG, msg);
+        return log(mContext, Log.DEBUG, null, msg, null);
     }
 
     /**
@@ -196,8 +784,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int d(String tag, String msg) {
-        writeToFile(mContext, "DEBUG", Print.getScope(), msg);
-        return print.println(Log.DEBUG, msg);
+        return log(mContext, Log.DEBUG, tag, msg, null);
     }
 
     /**
@@ -208,8 +795,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int d(Context context, String tag, String msg) {
-        writeToFile(context, "DEBUG", Print.getScope(), msg);
-        return print.println(Log.DEBUG, msg);
+        return log(context, Log.DEBUG, tag, msg, null);
     }
 
     /**
@@ -221,8 +807,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int d(String tag, String msg, Throwable tr) {
-        writeToFile(mContext, "DEBUG", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.DEBUG, msg + "\n" + Log.getStackTraceString(tr));
+        return log(mContext, Log.DEBUG, tag, msg, tr);
     }
 
     /**
@@ -234,28 +819,80 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int d(Context context, String tag, String msg, Throwable tr) {
-        writeToFile(context, "DEBUG", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.DEBUG, msg + "\n" + Log.getStackTraceString(tr));
+        return log(context, Log.DEBUG, tag, msg, tr);
     }
 
     /**
-     * Send a {@link #INFO} log message and log the exception.
+     * Send a {@link #DEBUG} log message formatted with {@link String#format}. Formatting is
+     * deferred until the level check passed, and to the writer thread in async mode.
      *
-     * @param tr  An exception to log
+     * @param format The message format.
+     * @param args   The format arguments.
      */
-    public static int i(Throwable tr) {
-        writeToFile(mContext, "INFO", Print.getScope(), getStackTraceString(tr));
-        return print.println(Log.INFO, getStackTraceString(tr));
+    public static int debugf(String format, Object... args) {
+        return logLazily(Log.DEBUG, null, format, LogEvent.ARGS_OBJECTS, args, 0);
     }
 
     /**
-     * Send an {@link #INFO} log message.
+     * Send a {@link #DEBUG} log message formatted with a single {@code int}, without boxing it
+     * unless the message is logged.
      *
-     * @param msg The message you would like logged.
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int debugf(String format, int arg) {
+        return logLazily(Log.DEBUG, null, format, LogEvent.ARGS_INT, null, arg);
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message formatted with a single {@code long}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int debugf(String format, long arg) {
+        return logLazily(Log.DEBUG, null, format, LogEvent.ARGS_LONG, null, arg);
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int d(Supplier msg) {
+        return logLazily(Log.DEBUG, null, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Send a {@link #DEBUG} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int d(String tag, Supplier msg) {
+        return logLazily(Log.DEBUG, tag, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Send a {@link #INFO} log message and log the exception.
+     *
+     * @param tr  An exception to log
+     */
+    public static int i(Throwable tr) {
+        return log(mContext, Log.INFO, null, null, tr);
+    }
+
+    /**
+     * Send an {@link #INFO} log message.
+     *
+     * @param msg The message you would like logged.
      */
     public static int i(String msg) {
-        writeToFile(mContext, "INFO", Print.getScope(), msg);
-        return print.println(Log.INFO, msg);
+        return log(mContext, Log.INFO, null, msg, null);
     }
 
     /**
@@ -266,8 +903,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int i(String tag, String msg) {
-        writeToFile(mContext, "INFO", Print.getScope(), msg);
-        return print.println(Log.INFO, msg);
+        return log(mContext, Log.INFO, tag, msg, null);
     }
 
     /**
@@ -278,8 +914,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int i(Context context, String tag, String msg) {
-        writeToFile(context, "INFO", Print.getScope(), msg);
-        return print.println(Log.INFO, msg);
+        return log(context, Log.INFO, tag, msg, null);
     }
 
     /**
@@ -291,8 +926,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int i(String tag, String msg, Throwable tr) {
-        writeToFile(mContext, "INFO", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.INFO, msg + "\n" + Log.getStackTraceString(tr));
+        return log(mContext, Log.INFO, tag, msg, tr);
     }
 
     /**
@@ -304,8 +938,62 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int i(Context context, String tag, String msg, Throwable tr) {
-        writeToFile(context, "INFO", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.INFO, msg + "\n" + Log.getStackTraceString(tr));
+        return log(context, Log.INFO, tag, msg, tr);
+    }
+
+    /**
+     * Send an {@link #INFO} log message formatted with {@link String#format}. Formatting is
+     * deferred until the level check passed, and to the writer thread in async mode.
+     *
+     * @param format The message format.
+     * @param args   The format arguments.
+     */
+    public static int infof(String format, Object... args) {
+        return logLazily(Log.INFO, null, format, LogEvent.ARGS_OBJECTS, args, 0);
+    }
+
+    /**
+     * Send an {@link #INFO} log message formatted with a single {@code int}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int infof(String format, int arg) {
+        return logLazily(Log.INFO, null, format, LogEvent.ARGS_INT, null, arg);
+    }
+
+    /**
+     * Send an {@link #INFO} log message formatted with a single {@code long}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int infof(String format, long arg) {
+        return logLazily(Log.INFO, null, format, LogEvent.ARGS_LONG, null, arg);
+    }
+
+    /**
+     * Send an {@link #INFO} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int i(Supplier msg) {
+        return logLazily(Log.INFO, null, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Send an {@link #INFO} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int i(String tag, Supplier msg) {
+        return logLazily(Log.INFO, tag, null, LogEvent.ARGS_SUPPLIER, msg, 0);
     }
 
     /**
@@ -314,8 +1002,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int w(Throwable tr) {
-        writeToFile(mContext, "WARN", Print.getScope(), getStackTraceString(tr));
-        return print.println(Log.WARN, getStackTraceString(tr));
+        return log(mContext, Log.WARN, null, null, tr);
     }
 
     /**
@@ -324,8 +1011,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int w(String msg) {
-        writeToFile(mContext, "WARN", Print.getScope(), msg);
-        return print.println(Log.WARN, msg);
+        return log(mContext, Log.WARN, null, msg, null);
     }
 
     /**
@@ -336,8 +1022,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int w(String tag, String msg) {
-        writeToFile(mContext, "WARN", Print.getScope(), msg);
-        return print.println(Log.WARN, msg);
+        return log(mContext, Log.WARN, tag, msg, null);
     }
 
     /**
@@ -348,8 +1033,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int w(Context context, String tag, String msg) {
-        writeToFile(context, "WARN", Print.getScope(), msg);
-        return print.println(Log.WARN, msg);
+        return log(context, Log.WARN, tag, msg, null);
     }
 
     /**
@@ -361,8 +1045,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int w(String tag, String msg, Throwable tr) {
-        writeToFile(mContext, "WARN", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.WARN, msg + "\n" + Log.getStackTraceString(tr));
+        return log(mContext, Log.WARN, tag, msg, tr);
     }
 
     /**
@@ -374,8 +1057,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int w(Context context, String tag, String msg, Throwable tr) {
-        writeToFile(context, "WARN", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.WARN, msg + "\n" + Log.getStackTraceString(tr));
+        return log(context, Log.WARN, tag, msg, tr);
     }
 
     /**
@@ -386,8 +1068,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int w(String tag, Throwable tr) {
-        writeToFile(mContext, "WARN", Print.getScope(), Log.getStackTraceString(tr));
-        return print.println(Log.WARN, Log.getStackTraceString(tr));
+        return log(mContext, Log.WARN, tag, null, tr);
     }
 
     /**
@@ -398,8 +1079,62 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int w(Context context, String tag, Throwable tr) {
-        writeToFile(context, "WARN", Print.getScope(), Log.getStackTraceString(tr));
-        return print.println(Log.WARN, Log.getStackTraceString(tr));
+        return log(context, Log.WARN, tag, null, tr);
+    }
+
+    /**
+     * Send a {@link #WARN} log message formatted with {@link String#format}. Formatting is
+     * deferred until the level check passed, and to the writer thread in async mode.
+     *
+     * @param format The message format.
+     * @param args   The format arguments.
+     */
+    public static int warnf(String format, Object... args) {
+        return logLazily(Log.WARN, null, format, LogEvent.ARGS_OBJECTS, args, 0);
+    }
+
+    /**
+     * Send a {@link #WARN} log message formatted with a single {@code int}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int warnf(String format, int arg) {
+        return logLazily(Log.WARN, null, format, LogEvent.ARGS_INT, null, arg);
+    }
+
+    /**
+     * Send a {@link #WARN} log message formatted with a single {@code long}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int warnf(String format, long arg) {
+        return logLazily(Log.WARN, null, format, LogEvent.ARGS_LONG, null, arg);
+    }
+
+    /**
+     * Send a {@link #WARN} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int w(Supplier msg) {
+        return logLazily(Log.WARN, null, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Send a {@link #WARN} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int w(String tag, Supplier msg) {
+        return logLazily(Log.WARN, tag, null, LogEvent.ARGS_SUPPLIER, msg, 0);
     }
 
     /**
@@ -408,8 +1143,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int e(Throwable tr) {
-        writeToFile(mContext, "ERROR", Print.getScope(), getStackTraceString(tr));
-        return print.println(Log.ERROR, getStackTraceString(tr));
+        return log(mContext, Log.ERROR, null, null, tr);
     }
 
     /**
@@ -418,8 +1152,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int e(String msg) {
-        writeToFile(mContext, "ERROR", Print.getScope(), msg);
-        return print.println(Log.ERROR, msg);
+        return log(mContext, Log.ERROR, null, msg, null);
     }
 
     /**
@@ -430,8 +1163,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int e(String tag, String msg) {
-        writeToFile(mContext, "ERROR", Print.getScope(), msg);
-        return print.println(Log.ERROR, msg);
+        return log(mContext, Log.ERROR, tag, msg, null);
     }
 
     /**
@@ -442,8 +1174,7 @@ public final class Log {
      * @param msg The message you would like logged.
      */
     public static int e(Context context, String tag, String msg) {
-        writeToFile(mContext, "ERROR", Print.getScope(), msg);
-        return print.println(Log.ERROR, msg);
+        return log(context, Log.ERROR, tag, msg, null);
     }
 
     /**
@@ -455,8 +1186,7 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int e(String tag, String msg, Throwable tr) {
-        writeToFile(mContext, "ERROR", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.ERROR, msg + "\n" + Log.getStackTraceString(tr));
+        return log(mContext, Log.ERROR, tag, msg, tr);
     }
 
     /**
@@ -468,16 +1198,77 @@ public final class Log {
      * @param tr  An exception to log
      */
     public static int e(Context context, String tag, String msg, Throwable tr) {
-        writeToFile(context, "ERROR", Print.getScope(), msg + "\n" + Log.getStackTraceString(tr));
-        return print.println(Log.ERROR, msg + "\n" + Log.getStackTraceString(tr));
+        return log(context, Log.ERROR, tag, msg, tr);
+    }
+
+    /**
+     * Send an {@link #ERROR} log message formatted with {@link String#format}. Formatting is
+     * deferred until the level check passed, and to the writer thread in async mode.
+     *
+     * @param format The message format.
+     * @param args   The format arguments.
+     */
+    public static int errorf(String format, Object... args) {
+        return logLazily(Log.ERROR, null, format, LogEvent.ARGS_OBJECTS, args, 0);
+    }
+
+    /**
+     * Send an {@link #ERROR} log message formatted with a single {@code int}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int errorf(String format, int arg) {
+        return logLazily(Log.ERROR, null, format, LogEvent.ARGS_INT, null, arg);
+    }
+
+    /**
+     * Send an {@link #ERROR} log message formatted with a single {@code long}, without boxing it
+     * unless the message is logged.
+     *
+     * @param format The message format.
+     * @param arg    The format argument.
+     */
+    public static int errorf(String format, long arg) {
+        return logLazily(Log.ERROR, null, format, LogEvent.ARGS_LONG, null, arg);
+    }
+
+    /**
+     * Send an {@link #ERROR} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int e(Supplier msg) {
+        return logLazily(Log.ERROR, null, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Send an {@link #ERROR} log message built by {@code msg}, which is only called if the
+     * message is logged.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @param msg Supplies the message you would like logged.
+     */
+    public static int e(String tag, Supplier msg) {
+        return logLazily(Log.ERROR, tag, null, LogEvent.ARGS_SUPPLIER, msg, 0);
+    }
+
+    /**
+     * Builds a log message only when it is going to be logged.
+     */
+    public interface Supplier {
+        String get();
     }
 
     public static boolean isDebugEnabled() {
-        return CONFIG.minimumLogLevel <= Log.DEBUG;
+        return settings.enabledLevel <= Log.DEBUG;
     }
 
     public static boolean isVerboseEnabled() {
-        return CONFIG.minimumLogLevel <= Log.VERBOSE;
+        return settings.enabledLevel <= Log.VERBOSE;
     }
 
     public static Config getConfig() {
@@ -485,40 +1276,741 @@ public final class Log {
         return CONFIG;
     }
 
+    /**
+     * Waits up to five seconds for the async writer to catch up, then writes out
+     * any log records still buffered, see {@link #flush(long)}.
+     */
+    public static void flush() {
+        flush(FLUSH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Waits for the async writer to catch up, then writes out any log records
+     * still buffered by the file appenders and, unless the durability is
+     * {@link #DURABILITY_NONE}, forces them to storage. Safe to call from a crash
+     * handler.
+     *
+     * @return false if the async writer did not catch up in time; what it had
+     * handled is written anyway.
+     */
+    public static boolean flush(long timeoutMillis) {
+        CONFIG.limiter.flush();
+        final AsyncDispatcher async = dispatcher;
+        final boolean drained = async == null || async.awaitDrained(timeoutMillis);
+        openFile();
+        FileAppender.flushAll();
+        for (Sink sink : sinks) {
+            sink.flush();
+        }
+        return drained;
+    }
+
+    /**
+     * Writes the events held by the in-memory buffer to {@code <name>.dump} beside
+     * the log file, or {@code <name>-<process>.dump} outside the app's main
+     * process, replacing an earlier dump.
+     *
+     * @return the dump file, or null without a memory buffer, a log file name or
+     * if it could not be written.
+     */
+    public static File dump() {
+        final Context context = mContext;
+        final String name = log_name;
+        if (memorySink == null || context == null || name == null) return null;
+
+        final File directory = new File(context.getFilesDir(), "log");
+        directory.mkdirs();
+        final File file = new File(directory, ProcessName.fileName(context, name) + ".dump");
+        Writer out = null;
+        try {
+            final FileOutputStream stream = new FileOutputStream(file);
+            out = new OutputStreamWriter(stream, "UTF-8");
+            dump(out);
+            out.flush();
+            stream.getFD().sync();
+            return file;
+        } catch (IOException e) {
+            if (DEBUGGING) android.util.Log.e("Log", "Unable to write " + file, e);
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the events held by the in-memory buffer, oldest first, e.g. into a
+     * crash report. Waits for the async writer to hand over queued events first.
+     *
+     * @return number of events written, 0 without a memory buffer.
+     */
+    public static int dump(Writer out) throws IOException {
+        final MemorySink sink = memorySink;
+        if (sink == null) return 0;
+        final AsyncDispatcher async = dispatcher;
+        if (async != null) async.awaitDrained(FLUSH_TIMEOUT_MILLIS);
+        return sink.dump(out);
+    }
+
+    /**
+     * Installs a default uncaught-exception handler that logs the exception,
+     * flushes the log and {@link #dump() dumps} the in-memory buffer before
+     * passing the exception on to the handler it replaced. Installing it again
+     * has no effect.
+     */
+    public static void installCrashHandler() {
+        synchronized (CONFIG) {
+            if (crashHandlerInstalled) return;
+            crashHandlerInstalled = true;
+        }
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                try {
+                    log(mContext, Log.ERROR, null, "Uncaught exception in thread " + thread.getName(), ex);
+                    flush();
+                    dump();
+                } catch (Throwable e) {
+                    if (DEBUGGING) android.util.Log.e("Log", "Unable to record crash", e);
+                }
+                if (previous != null) previous.uncaughtException(thread, ex);
+            }
+        });
+    }
+
+    private static void resizeMemorySink(int events) {
+        synchronized (CONFIG) {
+            final MemorySink old = memorySink;
+            if (old != null) removeSink(old);
+            memorySink = events > 0 ? new MemorySink(events) : null;
+            if (memorySink != null) addSink(memorySink);
+        }
+    }
+
+    /**
+     * @return number of events the async writer has discarded under its overflow policy.
+     */
+    public static long getDroppedEventCount() {
+        synchronized (CONFIG) {
+            final AsyncDispatcher async = dispatcher;
+            return droppedBeforeRestart + (async != null ? async.getDroppedCount() : 0);
+        }
+    }
+
+    /**
+     * @return a snapshot of what logging itself has done; all zero unless
+     * {@link Config#setMetricsEnabled(boolean)} is set.
+     */
+    public static LogMetrics getMetrics() {
+        final AsyncDispatcher async = dispatcher;
+        return new LogMetrics(sinks, async != null ? async.getDepth() : 0, async != null ? async.getMaxDepth() : 0,
+                getDroppedEventCount());
+    }
+
+    private static void restartDispatcher(BaseConfig config) {
+        final AsyncDispatcher old = dispatcher;
+        dispatcher = config.async ? new AsyncDispatcher(config.asyncCapacity, config.overflowPolicy, config.overflowLevel) : null;
+        if (old != null) {
+            old.shutdown(FLUSH_TIMEOUT_MILLIS);
+            droppedBeforeRestart += old.getDroppedCount();
+        }
+    }
+
     public interface Config {
         int getLoggingLevel();
 
         void setLoggingLevel(int level);
+
+        /**
+         * Overrides {@link #getLoggingLevel()} for {@code tag}, or for every tag
+         * starting with a prefix when written as "Net*". An exact tag wins over a
+         * prefix, a longer prefix over a shorter one, and "*" matches every tag.
+         */
+        void setTagLevel(String tag, int level);
+
+        /**
+         * Removes a rule set with {@link #setTagLevel(String, int)}.
+         */
+        void clearTagLevel(String tag);
+
+        /**
+         * @return the logcat level that applies to messages logged with {@code tag}.
+         */
+        int getTagLevel(String tag);
+
+        /**
+         * Limits each tag, or each {@link CallSite} for calls without a tag, to
+         * {@code eventsPerSecond} with bursts of up to {@code burst} events. The
+         * number of dropped events is logged at most once a second.
+         *
+         * @param eventsPerSecond 0 to disable the limit.
+         */
+        void setRateLimit(int eventsPerSecond, int burst);
+
+        int getRateLimit();
+
+        /**
+         * @return whether a message identical to the previous one from its tag is
+         * counted instead of logged, and reported as "Previous message repeated N
+         * times" when a different message arrives or on {@link Log#flush()}.
+         */
+        boolean isSuppressDuplicates();
+
+        void setSuppressDuplicates(boolean suppress);
+
+        /**
+         * @return minimum priority written to the log file, independent of
+         * {@link #getLoggingLevel()} which applies to logcat.
+         */
+        int getFileLoggingLevel();
+
+        void setFileLoggingLevel(int level);
+
+        /**
+         * @param mode one of {@link #CALLER_LOCATION_AUTO}, {@link #CALLER_LOCATION_ALWAYS}
+         *             or {@link #CALLER_LOCATION_NEVER}.
+         */
+        void setCallerLocation(int mode);
+
+        int getCallerLocation();
+
+        /**
+         * @return buffered bytes after which a log file is written out.
+         */
+        int getFlushThreshold();
+
+        void setFlushThreshold(int bytes);
+
+        /**
+         * @return longest time, in milliseconds, a record may stay buffered.
+         */
+        long getFlushInterval();
+
+        void setFlushInterval(long millis);
+
+        /**
+         * @return size in bytes at which the log file is rolled over, or 0 for no limit.
+         */
+        long getMaxFileSize();
+
+        void setMaxFileSize(long bytes);
+
+        /**
+         * @return whether the log file is also rolled over at local midnight.
+         */
+        boolean isDailyRollover();
+
+        void setDailyRollover(boolean daily);
+
+        /**
+         * @return number of rolled segments kept per log file, or 0 for no limit.
+         */
+        int getMaxArchives();
+
+        void setMaxArchives(int count);
+
+        /**
+         * @return total bytes of a log file and its rolled segments after which the
+         * oldest segments are deleted, or 0 for no limit.
+         */
+        long getMaxTotalSize();
+
+        void setMaxTotalSize(long bytes);
+
+        /**
+         * @return one of {@link #DURABILITY_NONE}, {@link #DURABILITY_PERIODIC},
+         * {@link #DURABILITY_ON_LEVEL} or {@link #DURABILITY_EVERY_BATCH}.
+         */
+        int getDurability();
+
+        void setDurability(int mode);
+
+        /**
+         * @return milliseconds between forces with {@link #DURABILITY_PERIODIC}.
+         */
+        long getSyncInterval();
+
+        void setSyncInterval(long millis);
+
+        /**
+         * @return lowest priority forced to storage with {@link #DURABILITY_ON_LEVEL}.
+         */
+        int getSyncLevel();
+
+        void setSyncLevel(int level);
+
+        /**
+         * @return whether rolled segments are gzip-compressed in the background.
+         */
+        boolean isCompressArchives();
+
+        void setCompressArchives(boolean compress);
+
+        /**
+         * @return {@link #FORMAT_TEXT}, {@link #FORMAT_BINARY}, {@link #FORMAT_JSON}
+         * or {@link #FORMAT_LOGFMT}.
+         */
+        int getFileFormat();
+
+        void setFileFormat(int format);
+
+        /**
+         * @return size in bytes of the memory-mapped crash buffer kept beside the log
+         * file as {@code <name>.mmap}, or 0 if it is disabled. Records a crashed
+         * process left in it are moved to {@code <name>.recovered} on the next start.
+         */
+        int getMappedBufferSize();
+
+        /**
+         * Enables the memory-mapped crash buffer. The size of an existing buffer
+         * only changes on the next start.
+         */
+        void setMappedBufferSize(int bytes);
+
+        /**
+         * @return number of recent events of every level kept in memory for
+         * {@link Log#dump()}, or 0 if the memory buffer is disabled.
+         */
+        int getMemoryBufferSize();
+
+        /**
+         * Enables the in-memory buffer; rounded up to a power of two. Changing the
+         * size discards the buffered events.
+         */
+        void setMemoryBufferSize(int events);
+
+        /**
+         * @return number of frames rendered per exception in a logged stack trace,
+         * or 0 for all of them.
+         */
+        int getMaxStackFrames();
+
+        void setMaxStackFrames(int frames);
+
+        /**
+         * @return number of causes rendered below a logged exception, or 0 for all
+         * of them.
+         */
+        int getMaxCauses();
+
+        void setMaxCauses(int causes);
+
+        /**
+         * @return whether {@link Log#getMetrics()} counts what logging does. Off by
+         * default; while off, recording costs a field read per log call. Turning
+         * it on starts every count from zero.
+         */
+        boolean isMetricsEnabled();
+
+        void setMetricsEnabled(boolean enabled);
+
+        /**
+         * @return one of {@link #MULTI_PROCESS_NONE}, {@link #MULTI_PROCESS_SEGMENTS}
+         * or {@link #MULTI_PROCESS_LOCKED}.
+         */
+        int getMultiProcessMode();
+
+        /**
+         * Sets how processes of the app share the log file; set it in every
+         * process before the first record is written, as an open file keeps its
+         * mode.
+         */
+        void setMultiProcessMode(int mode);
+
+        /**
+         * @return whether log calls only queue an event for the "Log-writer" thread.
+         */
+        boolean isAsync();
+
+        void setAsync(boolean async);
+
+        /**
+         * Sets the number of events the async writer can hold; rounded up to a power of two.
+         */
+        void setAsyncCapacity(int capacity);
+
+        /**
+         * @param policy one of {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST}
+         *               or {@link #OVERFLOW_DROP_BELOW_LEVEL}.
+         * @param level  minimum priority kept by {@link #OVERFLOW_DROP_BELOW_LEVEL}.
+         */
+        void setOverflowPolicy(int policy, int level);
     }
 
     public static class BaseConfig implements Config {
-        protected int minimumLogLevel = Log.VERBOSE;
+        protected volatile int minimumLogLevel = Log.VERBOSE;
+        protected volatile int fileLogLevel = Log.VERBOSE;
+        /**
+         * Lowest of the sink levels; the single check done by every log call.
+         */
+        protected volatile int enabledLevel = Log.VERBOSE;
+        /**
+         * Lowest level of the sinks other than logcat, which tag levels do not change.
+         */
+        volatile int otherSinksLevel = Log.VERBOSE;
+        final TagLevels tagLevels = new TagLevels();
+        final LogLimiter limiter = new LogLimiter();
+        protected volatile int flushThreshold = 8 * 1024;
+        protected volatile int callerLocation = Log.CALLER_LOCATION_AUTO;
+        protected volatile long flushInterval = 1000;
+        protected volatile long maxFileSize = 1024 * 1024;
+        protected volatile boolean dailyRollover;
+        protected volatile int maxArchives = 5;
+        protected volatile long maxTotalSize;
+        protected volatile boolean compressArchives = true;
+        protected volatile int durability = Log.DURABILITY_NONE;
+        protected volatile long syncInterval = 1000;
+        protected volatile int syncLevel = Log.ERROR;
+        protected volatile int fileFormat = Log.FORMAT_TEXT;
+        protected volatile int mappedBufferSize;
+        protected volatile int memoryBufferSize;
+        protected volatile int maxStackFrames;
+        protected volatile int maxCauses;
+        protected volatile boolean metricsEnabled;
+        protected volatile int multiProcessMode = Log.MULTI_PROCESS_NONE;
+        protected boolean async;
+        protected int asyncCapacity = 1024;
+        protected int overflowPolicy = Log.OVERFLOW_BLOCK;
+        protected int overflowLevel = Log.WARN;
         protected String packageName = "";
         protected String scope = "";
+        private boolean loggingLevelSet;
 
         protected BaseConfig() {
         }
 
-        public BaseConfig(Application context) {
+        /**
+         * Takes the scope from the package name right away. The level, VERBOSE
+         * for a debuggable build and INFO otherwise, is looked up in the
+         * {@link android.content.pm.PackageManager} on the "Log-init" thread and
+         * becomes the default of this config and of {@link Log#getConfig()}.
+         */
+        public BaseConfig(final Application context) {
+            final String name = context.getPackageName();
+            packageName = name != null ? name : "";
+            scope = packageName.toUpperCase(Locale.US);
+            runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    configureDefaultLevel(context);
+                }
+            });
+        }
+
+        /**
+         * Applies the default level to this config and to the installed one,
+         * {@link Log#getConfig()}, each unless a level was set on it.
+         */
+        private void configureDefaultLevel(Application context) {
             try {
-                packageName = context.getPackageName();
                 final int flags = context.getPackageManager().getApplicationInfo(packageName, 0).flags;
-                minimumLogLevel = (flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0 ? Log.VERBOSE : Log.INFO;
-                scope = packageName.toUpperCase(Locale.US);
-                d("", "Configuring Logging, minimum log level is %s" + "\n" + logLevelToString(minimumLogLevel));
+                final int level = (flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0 ? Log.VERBOSE : Log.INFO;
+                applyDefaultLoggingLevel(level);
+                if (this != CONFIG) CONFIG.applyDefaultLoggingLevel(level);
+                debugf("Configuring Logging, minimum log level is %s", logLevelToString(CONFIG.minimumLogLevel));
             } catch (Exception e) {
                 Log.e(packageName, "Error configuring logger", e);
             }
         }
 
+        private synchronized void applyDefaultLoggingLevel(int level) {
+            if (!loggingLevelSet) applyLoggingLevel(level);
+        }
+
         @Override
         public int getLoggingLevel() {
             return minimumLogLevel;
         }
 
         @Override
-        public void setLoggingLevel(int level) {
+        public synchronized void setLoggingLevel(int level) {
+            loggingLevelSet = true;
+            applyLoggingLevel(level);
+        }
+
+        private void applyLoggingLevel(int level) {
             minimumLogLevel = level;
+            if (this == CONFIG) LOGCAT_SINK.setLevel(level);
+        }
+
+        @Override
+        public void setTagLevel(String tag, int level) {
+            tagLevels.set(tag, level);
+            if (this == CONFIG) updateEnabledLevel();
+        }
+
+        @Override
+        public void clearTagLevel(String tag) {
+            tagLevels.remove(tag);
+            if (this == CONFIG) updateEnabledLevel();
+        }
+
+        @Override
+        public int getTagLevel(String tag) {
+            final int override = tagLevels.resolve(tag);
+            return override == TagLevels.NONE ? minimumLogLevel : override;
+        }
+
+        @Override
+        public void setRateLimit(int eventsPerSecond, int burst) {
+            limiter.setRateLimit(eventsPerSecond, burst);
+        }
+
+        @Override
+        public int getRateLimit() {
+            return limiter.getRateLimit();
+        }
+
+        @Override
+        public boolean isSuppressDuplicates() {
+            return limiter.isSuppressDuplicates();
+        }
+
+        @Override
+        public void setSuppressDuplicates(boolean suppress) {
+            limiter.setSuppressDuplicates(suppress);
+        }
+
+        @Override
+        public int getFileLoggingLevel() {
+            return fileLogLevel;
+        }
+
+        @Override
+        public synchronized void setFileLoggingLevel(int level) {
+            fileLogLevel = level;
+            if (this == CONFIG) {
+                FILE_SINK.setLevel(level);
+                MAPPED_SINK.setLevel(level);
+            }
+        }
+
+        @Override
+        public int getCallerLocation() {
+            return callerLocation;
+        }
+
+        @Override
+        public void setCallerLocation(int mode) {
+            callerLocation = mode;
+            if (this == CONFIG) updateEnabledLevel();
+        }
+
+        boolean wantsCallerLocation() {
+            final int mode = callerLocation;
+            return mode == Log.CALLER_LOCATION_ALWAYS
+                    || (mode == Log.CALLER_LOCATION_AUTO && minimumLogLevel <= Log.DEBUG);
+        }
+
+        @Override
+        public int getFlushThreshold() {
+            return flushThreshold;
+        }
+
+        @Override
+        public void setFlushThreshold(int bytes) {
+            flushThreshold = bytes;
+        }
+
+        @Override
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        @Override
+        public void setFlushInterval(long millis) {
+            flushInterval = millis;
+            if (this == CONFIG) FileAppender.rescheduleFlusher();
+        }
+
+        @Override
+        public long getMaxFileSize() {
+            return maxFileSize;
+        }
+
+        @Override
+        public void setMaxFileSize(long bytes) {
+            maxFileSize = bytes;
+        }
+
+        @Override
+        public boolean isDailyRollover() {
+            return dailyRollover;
+        }
+
+        @Override
+        public void setDailyRollover(boolean daily) {
+            dailyRollover = daily;
+        }
+
+        @Override
+        public int getMaxArchives() {
+            return maxArchives;
+        }
+
+        @Override
+        public void setMaxArchives(int count) {
+            maxArchives = count;
+        }
+
+        @Override
+        public long getMaxTotalSize() {
+            return maxTotalSize;
+        }
+
+        @Override
+        public void setMaxTotalSize(long bytes) {
+            maxTotalSize = bytes;
+        }
+
+        @Override
+        public int getDurability() {
+            return durability;
+        }
+
+        @Override
+        public void setDurability(int mode) {
+            durability = mode;
+            if (this == CONFIG) FileAppender.rescheduleFlusher();
+        }
+
+        @Override
+        public long getSyncInterval() {
+            return syncInterval;
+        }
+
+        @Override
+        public void setSyncInterval(long millis) {
+            syncInterval = millis;
+            if (this == CONFIG) FileAppender.rescheduleFlusher();
+        }
+
+        @Override
+        public int getSyncLevel() {
+            return syncLevel;
+        }
+
+        @Override
+        public void setSyncLevel(int level) {
+            syncLevel = level;
+        }
+
+        @Override
+        public boolean isCompressArchives() {
+            return compressArchives;
+        }
+
+        @Override
+        public void setCompressArchives(boolean compress) {
+            compressArchives = compress;
+        }
+
+        @Override
+        public int getFileFormat() {
+            return fileFormat;
+        }
+
+        @Override
+        public void setFileFormat(int format) {
+            fileFormat = format;
+        }
+
+        @Override
+        public int getMappedBufferSize() {
+            return mappedBufferSize;
+        }
+
+        @Override
+        public void setMappedBufferSize(int bytes) {
+            mappedBufferSize = bytes;
+            if (this != CONFIG) return;
+            if (bytes > 0) {
+                addSink(MAPPED_SINK);
+            } else {
+                removeSink(MAPPED_SINK);
+            }
+        }
+
+        @Override
+        public int getMemoryBufferSize() {
+            return memoryBufferSize;
+        }
+
+        @Override
+        public void setMemoryBufferSize(int events) {
+            memoryBufferSize = events;
+            if (this == CONFIG) resizeMemorySink(events);
+        }
+
+        @Override
+        public int getMaxStackFrames() {
+            return maxStackFrames;
+        }
+
+        @Override
+        public void setMaxStackFrames(int frames) {
+            maxStackFrames = frames;
+        }
+
+        @Override
+        public int getMaxCauses() {
+            return maxCauses;
+        }
+
+        @Override
+        public void setMaxCauses(int causes) {
+            maxCauses = causes;
+        }
+
+        @Override
+        public boolean isMetricsEnabled() {
+            return metricsEnabled;
+        }
+
+        @Override
+        public void setMetricsEnabled(boolean enabled) {
+            metricsEnabled = enabled;
+            if (this == CONFIG) LogStats.setEnabled(enabled, sinks);
+        }
+
+        @Override
+        public int getMultiProcessMode() {
+            return multiProcessMode;
+        }
+
+        @Override
+        public void setMultiProcessMode(int mode) {
+            multiProcessMode = mode;
+        }
+
+        @Override
+        public synchronized boolean isAsync() {
+            return async;
+        }
+
+        @Override
+        public synchronized void setAsync(boolean async) {
+            if (this.async == async) return;
+            this.async = async;
+            restartDispatcher(this);
+        }
+
+        @Override
+        public synchronized void setAsyncCapacity(int capacity) {
+            asyncCapacity = capacity;
+            if (async) restartDispatcher(this);
+        }
+
+        @Override
+        public synchronized void setOverflowPolicy(int policy, int level) {
+            overflowPolicy = policy;
+            overflowLevel = level;
+            if (async) restartDispatcher(this);
         }
     }
 
@@ -549,65 +2041,197 @@ public final class Log {
 
     /**
      * Default implementation logs to android.util.Log
+     * <p/>
+     * The logcat sink calls {@link #println(LogEvent)}. A subclass that only
+     * overrides the older {@link #println(int, String)} or
+     * {@link #processMessage(String)} keeps working: events are then passed to
+     * those, with the event's message.
      */
     public static class Print {
-        private static final int DEFAULT_STACK_TRACE_LINE_COUNT = 5;
+
+        private final boolean overridesPrintln = overrides(getClass(), "println", int.class, String.class);
+
+        private final boolean overridesProcessMessage = overrides(getClass(), "processMessage", String.class);
+
+        /**
+         * Delivers an event captured by {@link Log}. In async mode this runs on the
+         * writer thread, so scope, time and thread name are taken from the event.
+         */
+        public int println(LogEvent event) {
+            if (overridesPrintln) return println(event.getPriority(), event.getMessage());
+            if (logcatLevel(event.getTag()) > event.getPriority()) {
+                return 0;
+            }
+            final String msg = overridesProcessMessage ? processMessage(event.getMessage()) : processMessage(event);
+            return android.util.Log.println(event.getPriority(), event.getScope(), msg);
+        }
+
+        private static boolean overrides(Class<?> type, String name, Class<?>... parameters) {
+            for (; type != Print.class; type = type.getSuperclass()) {
+                try {
+                    type.getDeclaredMethod(name, parameters);
+                    return true;
+                } catch (NoSuchMethodException e) {
+                    // Look in the superclass.
+                }
+            }
+            return false;
+        }
 
         public int println(int priority, String msg) {
-            if (CONFIG.minimumLogLevel > priority) {
+            if (settings.logcatLevel > priority) {
                 return 0;
             }
             return android.util.Log.println(priority, getScope(), processMessage(msg));
         }
 
         protected String processMessage(String msg) {
-            if (CONFIG.minimumLogLevel <= Log.DEBUG) {
-                msg = String.format("%s %s %s", new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(System.currentTimeMillis()), Thread.currentThread().getName(), msg);
+            if (settings.logcatLevel <= Log.DEBUG) {
+                msg = decorate(System.currentTimeMillis(), Thread.currentThread().getName(), msg);
             }
             return msg;
         }
 
+        protected String processMessage(LogEvent event) {
+            if (settings.logcatLevel <= Log.DEBUG) {
+                return decorate(event.getTimeMillis(), event.getThreadName(), event.getMessage());
+            }
+            return event.getMessage();
+        }
+
+        /**
+         * @return "HH:mm:ss.SSS thread msg", built in a per-thread buffer.
+         */
+        private static String decorate(long time, String threadName, String msg) {
+            final TimestampFormatter formatter = TimestampFormatter.local();
+            return formatter.appendTime(formatter.builder(), time)
+                    .append(' ').append(threadName).append(' ').append(msg).toString();
+        }
+
         protected static String getScope() {
-            if (CONFIG.minimumLogLevel <= Log.DEBUG) {
-                final StackTraceElement trace = Thread.currentThread().getStackTrace()[DEFAULT_STACK_TRACE_LINE_COUNT];
-                return CONFIG.scope + "/" + trace.getFileName() + ":" + trace.getLineNumber();
+            final Settings current = settings;
+            if (current.callerLocation) {
+                LogStats.count(LogStats.STACK_CAPTURES);
+                return CallerLocation.resolve(current.scope, new Throwable());
             }
 
-            return CONFIG.scope;
+            return current.scope;
         }
 
     }
 
     public static void writeToFile(Context context, String type, String tag, String msg) {
-        if (context == null)return;
-        FileOutputStream out = null;
-        File InternalRoot = new File(context.getFilesDir().getAbsolutePath());
-        if (InternalRoot.canWrite() && out == null) {
-            InternalRoot.mkdirs();
-            if (InternalRoot.isDirectory()) {
-                InternalRoot = new File(InternalRoot.getAbsolutePath() + "/log");
-                InternalRoot.mkdirs();
-                if (InternalRoot.isDirectory()) {
-                    try {
-                        File LogFile = new File(InternalRoot, log_name);
-                        out = new FileOutputStream(LogFile, true);
-                    } catch (Exception e) {
-                        if (DEBUGGING) e("", "Log", e);
-                    }
-                }
+        int priority = 0;
+        for (int level = Log.VERBOSE; level <= Log.ASSERT; level++) {
+            if (logLevelToString(level).equals(type)) priority = level;
+        }
+        appendToFile(context, System.currentTimeMillis(), priority, type, tag, msg);
+    }
+
+    /**
+     * Delivers events to {@link #print}; its level is {@link Config#getLoggingLevel()}.
+     */
+    private static final class LogcatSink extends Sink {
+
+        LogcatSink() {
+            super(Log.VERBOSE);
+        }
+
+        @Override
+        public void setLevel(int level) {
+            CONFIG.minimumLogLevel = level;
+            super.setLevel(level);
+        }
+
+        @Override
+        int levelFor(LogEvent event) {
+            return logcatLevel(event.tag);
+        }
+
+        @Override
+        public int append(LogEvent event, String formatted) {
+            return print.println(event);
+        }
+
+        @Override
+        public String toString() {
+            return "logcat";
+        }
+    }
+
+    /**
+     * Appends events to the log file; its level is {@link Config#getFileLoggingLevel()}.
+     */
+    private static final class FileSink extends Sink {
+
+        FileSink() {
+            super(Log.VERBOSE);
+        }
+
+        @Override
+        public void setLevel(int level) {
+            CONFIG.fileLogLevel = level;
+            super.setLevel(level);
+        }
+
+        @Override
+        public int append(LogEvent event, String formatted) {
+            if (PRE_INIT.isOpen()) {
+                if (PRE_INIT.offer(event)) return 0;
+                openFile();
             }
+            final Context context = event.context != null ? event.context : mContext;
+            if (context == null || log_name == null) return 0;
+            final FileAppender appender = FileAppender.get(context, log_name);
+            return appender != null ? appender.append(event) : 0;
         }
-        try {
-            Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("GMT+8"));
-            String data = "Logged at " + String.valueOf(cal.get(Calendar.HOUR_OF_DAY) + ":" + cal.get(Calendar.MINUTE) + ":"
-                    + cal.get(Calendar.SECOND) + " " + String.valueOf(cal.get(Calendar.MONTH))
-                    + "-" + String.valueOf(cal.get(Calendar.DAY_OF_MONTH))
-                    + "-" + String.valueOf(cal.get(Calendar.YEAR)) + "\n"
-                    + type + "@" + tag + "\t" + msg + "\n");
-            out.write(data.getBytes());
-            out.close();
-        } catch (Exception e) {
-            if (DEBUGGING) e("", "Log", e);
+
+        @Override
+        public String toString() {
+            return "file";
+        }
+    }
+
+    /**
+     * Copies events into the memory-mapped crash buffer; registered while
+     * {@link Config#getMappedBufferSize()} is positive and follows the file level.
+     */
+    private static final class MappedSink extends Sink {
+
+        MappedSink() {
+            super(Log.VERBOSE);
+        }
+
+        @Override
+        public int append(LogEvent event, String formatted) {
+            final int size = CONFIG.mappedBufferSize;
+            final Context context = event.context != null ? event.context : mContext;
+            if (size <= 0 || context == null || log_name == null) return 0;
+            final MappedLogBuffer buffer = MappedLogBuffer.get(context, log_name, size);
+            if (buffer == null) return 0;
+
+            return buffer.append(event.timeMillis, logLevelToString(event.priority), event.getScope(), event.getMessage());
+        }
+
+        @Override
+        public String toString() {
+            return "mapped";
+        }
+    }
+
+    private static void appendToFile(Context context, long time, int priority, String type, String tag, String msg) {
+        if (PRE_INIT.isOpen()) {
+            final LogEvent event = new LogEvent();
+            event.set(context, priority, null, tag, null, msg, null);
+            event.timeMillis = time;
+            if (PRE_INIT.offer(event)) return;
+            openFile();
         }
+        final Context target = context != null ? context : mContext;
+        if (target == null || log_name == null) return;
+        final FileAppender appender = FileAppender.get(target, log_name);
+        if (appender == null) return;
+
+        appender.append(time, priority, type, tag, msg);
     }
 }
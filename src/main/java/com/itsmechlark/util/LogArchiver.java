@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Names rolled log segments and enforces the archive limits from
+ * {@link Log.Config} on a low-priority background thread, so callers never
+ * wait for old segments to be deleted.
+ * <p/>
+ * A segment of {@code app.log} rolled at 14:32:05 on 2013-10-18 is called
+ * {@code app.log.20131018-143205}, which keeps archives in chronological order
+ * when sorted by name.
+ * <p/>
+ * With {@link Log.Config#isCompressArchives()} each segment is streamed into
+ * {@code <segment>.gz.tmp}, synced, renamed to {@code <segment>.gz} and only then
+ * deleted. A crash at any point leaves either the original segment or a complete
+ * archive; {@link #recover(File)} finishes or restarts the interrupted work.
+ * <p/>
+ * A segment's {@link LogIndex} sidecar is deleted with it, and when it is
+ * compressed. For a log shared under {@link Log#MULTI_PROCESS_LOCKED}, one process
+ * at a time does this work.
+ */
+final class LogArchiver {
+
+    static final String GZIP_SUFFIX = ".gz";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Log-archiver");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private LogArchiver() {
+    }
+
+    /**
+     * @return an archive name for {@code file} rolled at {@code time} that is
+     * unused, also by a compressed archive.
+     */
+    static File archiveFile(File file, long time) {
+        final String base = file.getName() + "." + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(time));
+        File archive = new File(file.getParentFile(), base);
+        for (int i = 1; isTaken(archive); i++) {
+            archive = new File(file.getParentFile(), base + "-" + i);
+        }
+        return archive;
+    }
+
+    private static boolean isTaken(File archive) {
+        return archive.exists() || new File(archive.getPath() + GZIP_SUFFIX).exists();
+    }
+
+    /**
+     * @return the rolled segments of {@code file}, oldest first.
+     */
+    static File[] archives(File file) {
+        return LogReader.segments(file);
+    }
+
+    /**
+     * Queues compression of a segment just rolled from {@code file}, then deletion
+     * of the oldest segments beyond the configured archive count and total size.
+     */
+    static void rolled(final File file, final File segment) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FileLock lock = FileAppender.lockArchives(file);
+                try {
+                    final Log.Config config = Log.getConfig();
+                    if (config.isCompressArchives()) compress(segment);
+                    pruneNow(file, config.getMaxArchives(), config.getMaxTotalSize());
+                } finally {
+                    release(lock);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues cleanup after a crash: drops partial {@code .gz.tmp} files, deletes
+     * segments whose archive was completed, and compresses the rest.
+     */
+    static void recover(final File file) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FileLock lock = FileAppender.lockArchives(file);
+                try {
+                    final File[] temps = file.getParentFile().listFiles(new FilenameFilter() {
+                        @Override
+                        public boolean accept(File dir, String name) {
+                            return name.startsWith(file.getName() + ".") && name.endsWith(GZIP_SUFFIX + TEMP_SUFFIX);
+                        }
+                    });
+                    if (temps != null) {
+                        for (File temp : temps) temp.delete();
+                    }
+                    final File[] indexes = file.getParentFile().listFiles(new FilenameFilter() {
+                        @Override
+                        public boolean accept(File dir, String name) {
+                            return name.startsWith(file.getName() + ".") && name.endsWith(LogIndex.SUFFIX);
+                        }
+                    });
+                    if (indexes != null) {
+                        for (File index : indexes) {
+                            final String path = index.getPath();
+                            if (!new File(path.substring(0, path.length() - LogIndex.SUFFIX.length())).exists()) index.delete();
+                        }
+                    }
+
+                    final Log.Config config = Log.getConfig();
+                    for (File segment : archives(file)) {
+                        if (segment.getName().endsWith(GZIP_SUFFIX)) continue;
+                        final File archive = new File(segment.getPath() + GZIP_SUFFIX);
+                        if (archive.exists()) {
+                            // Only a copy of this segment; the archive of another one is kept apart.
+                            if (!isArchiveOf(archive, segment)) continue;
+                            segment.delete();
+                            LogIndex.indexFile(segment).delete();
+                        } else if (config.isCompressArchives()) {
+                            compress(segment);
+                        }
+                    }
+                    pruneNow(file, config.getMaxArchives(), config.getMaxTotalSize());
+                } finally {
+                    release(lock);
+                }
+            }
+        });
+    }
+
+    private static void compress(File segment) {
+        if (!segment.isFile()) return;
+        final File archive = new File(segment.getPath() + GZIP_SUFFIX);
+        if (archive.exists()) {
+            // Never replace an archive; the segment stays uncompressed instead.
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Not compressing " + segment + ", " + archive + " exists");
+            return;
+        }
+        final File temp = new File(archive.getPath() + TEMP_SUFFIX);
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(segment);
+            out = new FileOutputStream(temp);
+            final GZIPOutputStream gzip = new GZIPOutputStream(out, COPY_BUFFER_SIZE);
+            final byte[] chunk = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                gzip.write(chunk, 0, read);
+            }
+            gzip.finish();
+            gzip.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(archive)) throw new IOException("Unable to rename " + temp);
+            archive.setLastModified(segment.lastModified());
+            segment.delete();
+            // Offsets in the index are only valid for the uncompressed segment.
+            LogIndex.indexFile(segment).delete();
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to compress " + segment, e);
+            temp.delete();
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return whether the gzip trailer of {@code archive} records the length of
+     * {@code segment}, as when a crash came between compressing and deleting it.
+     */
+    private static boolean isArchiveOf(File archive, File segment) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(archive, "r");
+            if (in.length() < 4) return false;
+            in.seek(in.length() - 4);
+            final long size = (in.read() | in.read() << 8 | in.read() << 16 | (long) in.read() << 24) & 0xffffffffL;
+            return size == (segment.length() & 0xffffffffL);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock == null) return;
+        try {
+            lock.release();
+        } catch (IOException ignored) {
+        }
+        closeQuietly(lock.channel());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void pruneNow(File file, int maxArchives, long maxTotalSize) {
+        final File[] archives = archives(file);
+        long total = file.length();
+        for (File archive : archives) {
+            total += archive.length();
+        }
+        for (int i = 0; i < archives.length; i++) {
+            final boolean overCount = maxArchives > 0 && archives.length - i > maxArchives;
+            final boolean overSize = maxTotalSize > 0 && total > maxTotalSize;
+            if (!overCount && !overSize) break;
+            final long length = archives[i].length();
+            if (archives[i].delete()) total -= length;
+            LogIndex.indexFile(archives[i]).delete();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Turns log files written with {@link Log#FORMAT_BINARY} back into the text
+ * format, or into one JSON object per line. Plain Java, so it runs on a desktop:
+ * <pre>
+ * java -cp util-log.jar com.itsmechlark.util.LogDecoder [--json] app.log [app.log.20131018-143205.gz ...]
+ * </pre>
+ * Files ending in {@code .gz} are decompressed on the fly; output goes to stdout.
+ */
+public final class LogDecoder {
+
+    /**
+     * Receives decoded records.
+     */
+    public interface Handler {
+        void record(long timeMillis, int priority, String tag, String msg) throws IOException;
+    }
+
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    private final DataInputStream in;
+
+    private final Map<Integer, String> tags = new HashMap<Integer, String>();
+
+    private long time;
+
+    private boolean started;
+
+    public LogDecoder(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        for (String arg : args) {
+            if ("--json".equals(arg)) {
+                json = true;
+                continue;
+            }
+            InputStream in = new FileInputStream(arg);
+            if (arg.endsWith(".gz")) in = new GZIPInputStream(in);
+            try {
+                new LogDecoder(in).decode(json ? jsonWriter(out) : textWriter(out));
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads every record, stopping quietly at a record cut short by a crash.
+     *
+     * @throws IOException if the stream is not a binary log or is corrupt.
+     */
+    public void decode(Handler handler) throws IOException {
+        while (next(handler)) {
+        }
+    }
+
+    /**
+     * Reads up to and including the next event, passing it to {@code handler}.
+     *
+     * @return false at the end of the stream or at a record cut short by a crash.
+     * @throws IOException if the stream is not a binary log or is corrupt.
+     */
+    boolean next(Handler handler) throws IOException {
+        if (!started) {
+            readHeader();
+            started = true;
+        }
+        try {
+            for (int type; (type = in.read()) != -1; ) {
+                switch (type) {
+                    case BinaryLogFormat.DICT:
+                        final int id = (int) readVarint();
+                        tags.put(id, readString());
+                        break;
+                    case BinaryLogFormat.BASE:
+                        time = readVarint();
+                        break;
+                    case BinaryLogFormat.EVENT:
+                        time += readVarint();
+                        final int priority = in.readUnsignedByte();
+                        final String tag = tags.get((int) readVarint());
+                        handler.record(time, priority, tag, readString());
+                        return true;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (EOFException truncated) {
+            // The last record was cut short; everything before it was delivered.
+        }
+        return false;
+    }
+
+    private void readHeader() throws IOException {
+        final byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != BinaryLogFormat.MAGIC[i]) throw new IOException("Not a binary log file");
+        }
+        final int version = in.readUnsignedByte();
+        if (version != BinaryLogFormat.VERSION) throw new IOException("Unsupported version " + version);
+    }
+
+    public static Handler textWriter(final Writer out) {
+        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss MM-dd-yyyy", Locale.US);
+        return new Handler() {
+            @Override
+            public void record(long timeMillis, int priority, String tag, String msg) throws IOException {
+                out.write("Logged at " + format.format(new Date(timeMillis)) + "\n"
+                        + levelName(priority) + "@" + tag + "\t" + msg + "\n");
+            }
+        };
+    }
+
+    public static Handler jsonWriter(final Writer out) {
+        return new Handler() {
+            @Override
+            public void record(long timeMillis, int priority, String tag, String msg) throws IOException {
+                final StringBuilder line = new StringBuilder(64 + msg.length());
+                StructuredFormat.appendJson(line, timeMillis, levelName(priority), tag, msg, null, null);
+                out.write(line.append('\n').toString());
+            }
+        };
+    }
+
+    /**
+     * Same names as {@link Log#logLevelToString(int)}, without loading Android classes.
+     */
+    static String levelName(int priority) {
+        switch (priority) {
+            case 2:
+                return "VERBOSE";
+            case 3:
+                return "DEBUG";
+            case 4:
+                return "INFO";
+            case 5:
+                return "WARN";
+            case 6:
+                return "ERROR";
+            case 7:
+                return "ASSERT";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private String readString() throws IOException {
+        final long length = readVarint();
+        if (length > MAX_STRING_LENGTH) throw new IOException("Corrupt string length " + length);
+        final byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+
+/**
+ * A single log call as captured on the caller's thread. Instances are reused:
+ * the async ring buffer preallocates one per slot, so nothing may hold on to an
+ * event after the sink that received it returns.
+ */
+public final class LogEvent {
+    static final int ARGS_NONE = 0;
+    static final int ARGS_OBJECTS = 1;
+    static final int ARGS_INT = 2;
+    static final int ARGS_LONG = 3;
+    static final int ARGS_SUPPLIER = 4;
+    static final int ARGS_FIELDS = 5;
+
+    int priority;
+    String tag;
+    String scope;
+    Throwable callSite;
+    String message;
+    Throwable throwable;
+    long timeMillis;
+    long threadId;
+    String threadName;
+    Context context;
+
+    /**
+     * How {@link #message} is turned into text: as is, as a format string over
+     * {@link #args} or {@link #primitive}, or by calling the {@link Log.Supplier}
+     * in {@link #args}. With {@link #ARGS_FIELDS} the message is used as is and
+     * {@link #args} holds the {@link KeyValues} of a structured event.
+     */
+    int argsKind;
+    Object args;
+    long primitive;
+
+    private String formatted;
+
+    /**
+     * Fields copied into this event when it outlives the call, reused with it.
+     */
+    private KeyValues ownFields;
+
+    /**
+     * Output of each distinct {@link LogFormatter} already applied to this event,
+     * so sinks sharing a formatter share the string. Kept across reuse of the
+     * event to avoid reallocating.
+     */
+    private LogFormatter[] formatters;
+    private String[] rendered;
+    private int renderedCount;
+
+    void set(Context context, int priority, String tag, String scope, Throwable callSite, String message, Throwable throwable) {
+        final Thread thread = Thread.currentThread();
+        this.context = context;
+        this.priority = priority;
+        this.tag = tag;
+        this.scope = scope;
+        this.callSite = callSite;
+        this.message = message;
+        this.throwable = throwable;
+        this.timeMillis = System.currentTimeMillis();
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+        this.argsKind = ARGS_NONE;
+        this.args = null;
+        this.formatted = null;
+        clearRendered();
+    }
+
+    void setArguments(int kind, Object args, long primitive) {
+        this.argsKind = kind;
+        this.args = args;
+        this.primitive = primitive;
+    }
+
+    /**
+     * Like {@link #setArguments(int, Object, long)}, copying structured fields
+     * since the caller's builder is reused once the call returns.
+     */
+    void copyArguments(int kind, Object args, long primitive) {
+        if (kind == ARGS_FIELDS) {
+            if (ownFields == null) ownFields = new KeyValues();
+            ownFields.copyFrom((KeyValues) args);
+            args = ownFields;
+        }
+        setArguments(kind, args, primitive);
+    }
+
+    void copyFrom(LogEvent other) {
+        context = other.context;
+        priority = other.priority;
+        tag = other.tag;
+        scope = other.scope;
+        callSite = other.callSite;
+        message = other.message;
+        throwable = other.throwable;
+        timeMillis = other.timeMillis;
+        threadId = other.threadId;
+        threadName = other.threadName;
+        copyArguments(other.argsKind, other.args, other.primitive);
+        formatted = other.formatted;
+        clearRendered();
+    }
+
+    void clear() {
+        context = null;
+        tag = null;
+        scope = null;
+        callSite = null;
+        message = null;
+        throwable = null;
+        threadName = null;
+        args = null;
+        formatted = null;
+        if (ownFields != null) ownFields.clear();
+        clearRendered();
+    }
+
+    /**
+     * @return this event as formatted by {@code formatter}, formatting it only the
+     * first time a given formatter asks.
+     */
+    String render(LogFormatter formatter) {
+        for (int i = 0; i < renderedCount; i++) {
+            if (formatters[i] == formatter) return rendered[i];
+        }
+        final String text = formatter.format(this);
+        if (formatters == null) {
+            formatters = new LogFormatter[4];
+            rendered = new String[4];
+        } else if (renderedCount == formatters.length) {
+            final LogFormatter[] grownFormatters = new LogFormatter[renderedCount * 2];
+            final String[] grownRendered = new String[renderedCount * 2];
+            System.arraycopy(formatters, 0, grownFormatters, 0, renderedCount);
+            System.arraycopy(rendered, 0, grownRendered, 0, renderedCount);
+            formatters = grownFormatters;
+            rendered = grownRendered;
+        }
+        formatters[renderedCount] = formatter;
+        rendered[renderedCount++] = text;
+        return text;
+    }
+
+    private void clearRendered() {
+        for (int i = 0; i < renderedCount; i++) {
+            formatters[i] = null;
+            rendered[i] = null;
+        }
+        renderedCount = 0;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * @return the configured scope, followed by the caller's "File.java:line"
+     * when the call captured its location. Resolved on first use.
+     */
+    public String getScope() {
+        if (callSite != null) {
+            scope = CallerLocation.resolve(scope, callSite);
+            callSite = null;
+        }
+        return scope;
+    }
+
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @return number of key-value fields of a structured event.
+     */
+    public int getFieldCount() {
+        return argsKind == ARGS_FIELDS ? ((KeyValues) args).size() : 0;
+    }
+
+    public String getFieldKey(int index) {
+        return ((KeyValues) args).key(index);
+    }
+
+    /**
+     * @return the field's value, boxed for numbers and booleans.
+     */
+    public Object getFieldValue(int index) {
+        return ((KeyValues) args).value(index);
+    }
+
+    /**
+     * @return the fields of a structured event, or null.
+     */
+    KeyValues fields() {
+        return argsKind == ARGS_FIELDS ? (KeyValues) args : null;
+    }
+
+    /**
+     * @return the message text alone, without fields or stack trace.
+     */
+    String getText() {
+        return text();
+    }
+
+    /**
+     * @return the message, formatted if the call passed arguments or a supplier,
+     * followed by " key=value" for each field of a structured event and the
+     * stack trace of any attached throwable. Built on first use, on the writer
+     * thread in async mode, and shared by every sink.
+     */
+    public String getMessage() {
+        if (formatted == null) {
+            String text = text();
+            if (argsKind == ARGS_FIELDS && ((KeyValues) args).size() > 0) {
+                final StringBuilder line = new StringBuilder(64);
+                if (text != null) line.append(text);
+                StructuredFormat.appendLogfmtFields(line, (KeyValues) args);
+                text = text != null ? line.toString() : line.substring(1);
+            }
+            if (throwable == null) {
+                formatted = text;
+            } else if (text == null) {
+                formatted = StackTraceRenderer.render(throwable);
+            } else {
+                formatted = text + "\n" + StackTraceRenderer.render(throwable);
+            }
+        }
+        return formatted;
+    }
+
+    private String text() {
+        switch (argsKind) {
+            case ARGS_OBJECTS:
+                return format((Object[]) args);
+            case ARGS_INT:
+                return format(new Object[]{(int) primitive});
+            case ARGS_LONG:
+                return format(new Object[]{primitive});
+            case ARGS_SUPPLIER:
+                try {
+                    return ((Log.Supplier) args).get();
+                } catch (RuntimeException e) {
+                    return "Log.Supplier failed: " + e;
+                }
+            default:
+                return message;
+        }
+    }
+
+    private String format(Object[] values) {
+        try {
+            return String.format(Locale.US, message, values);
+        } catch (IllegalFormatException e) {
+            return message + " " + Arrays.toString(values);
+        }
+    }
+}
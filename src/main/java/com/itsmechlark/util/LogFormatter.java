@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * Turns a {@link LogEvent} into the text a {@link Sink} writes. Each event is
+ * formatted at most once per formatter instance, so sinks that should produce
+ * the same output should share one instance.
+ */
+public interface LogFormatter {
+
+    /**
+     * One JSON object per event, as written with {@link Log#FORMAT_JSON}.
+     */
+    LogFormatter JSON = new LogFormatter() {
+        @Override
+        public String format(LogEvent event) {
+            final Throwable tr = event.getThrowable();
+            return StructuredFormat.appendJson(new StringBuilder(128), event.getTimeMillis(),
+                    Log.logLevelToString(event.getPriority()), event.getScope(), event.getText(), event.fields(),
+                    tr != null ? StackTraceRenderer.render(tr) : null).toString();
+        }
+    };
+
+    /**
+     * One logfmt line per event, as written with {@link Log#FORMAT_LOGFMT}.
+     */
+    LogFormatter LOGFMT = new LogFormatter() {
+        @Override
+        public String format(LogEvent event) {
+            final Throwable tr = event.getThrowable();
+            return StructuredFormat.appendLogfmt(new StringBuilder(128), event.getTimeMillis(),
+                    Log.logLevelToString(event.getPriority()), event.getScope(), event.getText(), event.fields(),
+                    tr != null ? StackTraceRenderer.render(tr) : null).toString();
+        }
+    };
+
+    String format(LogEvent event);
+}
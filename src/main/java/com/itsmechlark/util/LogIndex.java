@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of the {@code <file>.idx} sidecar that {@link FileAppender} keeps next
+ * to a text log file, read by {@link LogReader}. Free of Android dependencies.
+ * <p/>
+ * Records are grouped into blocks of up to {@link #BLOCK_RECORDS} records or
+ * {@link #BLOCK_BYTES} bytes. Each completed block appends one entry:
+ * <pre>
+ * entry := i64(start offset) i64(end offset) i64(min time) i64(max time) i32(level bitmap)
+ * </pre>
+ * Offsets are byte positions in the log file, times epoch millis, and bit
+ * {@code 1 << priority} of the bitmap is set if the block holds a record of that
+ * priority. Parts of the file not covered by an entry, such as the block still
+ * being written, have to be scanned.
+ */
+final class LogIndex {
+
+    static final String SUFFIX = ".idx";
+
+    static final int ENTRY_SIZE = 36;
+
+    static final int BLOCK_RECORDS = 256;
+
+    static final int BLOCK_BYTES = 64 * 1024;
+
+    final long start;
+
+    final long end;
+
+    final long minTime;
+
+    final long maxTime;
+
+    final int levels;
+
+    LogIndex(long start, long end, long minTime, long maxTime, int levels) {
+        this.start = start;
+        this.end = end;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        this.levels = levels;
+    }
+
+    static File indexFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the entries of {@code file}'s index in file order, empty if it has
+     * none; an entry cut short by a crash is ignored.
+     */
+    static List<LogIndex> read(File file) throws IOException {
+        final List<LogIndex> entries = new ArrayList<LogIndex>();
+        final File index = indexFile(file);
+        if (!index.isFile()) return entries;
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        try {
+            while (true) {
+                entries.add(new LogIndex(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt()));
+            }
+        } catch (EOFException done) {
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+}
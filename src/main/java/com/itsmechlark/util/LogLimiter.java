@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Protects the sinks from a log site gone hot. Events are keyed by tag, or by
+ * call site for {@link Log.CallSite} and for untagged calls whose caller
+ * location was captured anyway, and checked before anything is captured. No
+ * stack is captured just for the key, so other untagged calls share the
+ * configured scope; tag hot sites or use a {@link Log.CallSite} to limit them
+ * apart:
+ * <ul>
+ * <li>Duplicate suppression swallows a message identical to the previous one for
+ * its key, same priority, text and throwable type and message, and counts it; the
+ * count is logged as "Previous message repeated N times" once a different message
+ * arrives or {@link Log#flush()} is called.</li>
+ * <li>The rate limit is a token bucket per key, kept as a single theoretical
+ * arrival time updated with compare-and-set. Dropped events are counted and
+ * reported before an admitted one at most once a second, and on flush.</li>
+ * </ul>
+ * All state is in atomics, so concurrent callers never block each other.
+ */
+final class LogLimiter {
+
+    private static final int MAX_TRACKED_KEYS = 1024;
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    private volatile boolean suppressDuplicates;
+
+    /**
+     * Nanoseconds per token, or 0 without a rate limit.
+     */
+    private volatile long interval;
+
+    /**
+     * How far the arrival time may run ahead of now, i.e. burst - 1 intervals.
+     */
+    private volatile long tolerance;
+
+    private volatile int eventsPerSecond;
+
+    private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<String, Key>();
+
+    boolean isActive() {
+        return suppressDuplicates || interval > 0;
+    }
+
+    boolean isSuppressDuplicates() {
+        return suppressDuplicates;
+    }
+
+    void setSuppressDuplicates(boolean suppress) {
+        suppressDuplicates = suppress;
+    }
+
+    int getRateLimit() {
+        return eventsPerSecond;
+    }
+
+    synchronized void setRateLimit(int eventsPerSecond, int burst) {
+        this.eventsPerSecond = eventsPerSecond;
+        if (eventsPerSecond <= 0) {
+            interval = 0;
+            return;
+        }
+        final long perEvent = Math.max(1, NANOS_PER_SECOND / eventsPerSecond);
+        tolerance = perEvent * (Math.max(burst, 1) - 1);
+        interval = perEvent;
+    }
+
+    /**
+     * @param repeatable whether {@code msg} is the complete text, so identical
+     *                   calls are duplicates; false for format strings and suppliers.
+     * @return whether the event should be logged. Summaries of what was held back
+     * for this key are logged first.
+     */
+    boolean admit(String key, int priority, String msg, Throwable tr, boolean repeatable) {
+        final Key state = key(key);
+
+        if (suppressDuplicates) {
+            if (repeatable) {
+                final Last last = state.last.get();
+                if (last != null && last.matches(priority, msg, tr) && last.repeat()) return false;
+                report(key, state.last.getAndSet(new Last(priority, msg, tr)));
+            } else {
+                report(key, state.last.getAndSet(null));
+            }
+        }
+
+        final long perEvent = interval;
+        if (perEvent > 0) {
+            final long slack = tolerance;
+            final long now = System.nanoTime();
+            for (; ; ) {
+                final long arrival = state.arrival.get();
+                final long start = arrival - now > 0 ? arrival : now;
+                if (start - now > slack) {
+                    state.dropped.incrementAndGet();
+                    return false;
+                }
+                if (state.arrival.compareAndSet(arrival, start + perEvent)) break;
+            }
+            final long reported = state.reported.get();
+            if (now - reported >= NANOS_PER_SECOND && state.dropped.get() > 0 && state.reported.compareAndSet(reported, now)) {
+                reportDropped(key, priority, state);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Logs the repeat counts still held back, e.g. before the log is flushed.
+     */
+    void flush() {
+        for (Map.Entry<String, Key> entry : keys.entrySet()) {
+            report(entry.getKey(), entry.getValue().last.getAndSet(null));
+            reportDropped(entry.getKey(), Log.WARN, entry.getValue());
+        }
+    }
+
+    private Key key(String name) {
+        Key state = keys.get(name);
+        if (state == null) {
+            if (keys.size() >= MAX_TRACKED_KEYS) keys.clear();
+            final Key created = new Key();
+            state = keys.putIfAbsent(name, created);
+            if (state == null) state = created;
+        }
+        return state;
+    }
+
+    private static void report(String key, Last previous) {
+        if (previous == null) return;
+        final int repeats = previous.close();
+        if (repeats > 0) {
+            Log.logSummary(key, previous.priority, "Previous message repeated " + repeats + " times");
+        }
+    }
+
+    private static void reportDropped(String key, int priority, Key state) {
+        final long dropped = state.dropped.getAndSet(0);
+        if (dropped > 0) {
+            Log.logSummary(key, priority, dropped + " messages dropped by the rate limit");
+        }
+    }
+
+    private static final class Key {
+        final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE / 2);
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong reported = new AtomicLong(Long.MIN_VALUE / 2);
+        final AtomicReference<Last> last = new AtomicReference<Last>();
+    }
+
+    /**
+     * The last message for a key and how often it was repeated since; the count
+     * becomes -1 once it has been reported, so no repeat is lost or counted twice.
+     */
+    private static final class Last {
+        final int priority;
+        final String msg;
+        final Class<?> errorType;
+        final String errorMessage;
+        final AtomicInteger repeats = new AtomicInteger();
+
+        Last(int priority, String msg, Throwable tr) {
+            this.priority = priority;
+            this.msg = msg;
+            this.errorType = tr != null ? tr.getClass() : null;
+            this.errorMessage = tr != null ? tr.getMessage() : null;
+        }
+
+        boolean matches(int priority, String msg, Throwable tr) {
+            return this.priority == priority
+                    && equal(this.msg, msg)
+                    && errorType == (tr != null ? tr.getClass() : null)
+                    && (tr == null || equal(errorMessage, tr.getMessage()));
+        }
+
+        boolean repeat() {
+            for (; ; ) {
+                final int count = repeats.get();
+                if (count < 0) return false;
+                if (repeats.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        int close() {
+            return repeats.getAndSet(-1);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the logging subsystem did since {@link Log.Config#setMetricsEnabled(boolean)}
+ * last turned metrics on, as returned by {@link Log#getMetrics()}. Counters are summed
+ * without stopping writers, so values read together may be a few events apart.
+ */
+public final class LogMetrics {
+
+    /**
+     * Latency distribution in power-of-two buckets.
+     */
+    public static final class Histogram {
+
+        private final long[] buckets = new long[LogStats.BUCKETS];
+
+        private final long count;
+
+        private final long totalNanos;
+
+        Histogram(StripedCounters counters) {
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = sum(counters, i);
+                count += buckets[i];
+            }
+            this.count = count;
+            totalNanos = sum(counters, LogStats.BUCKETS);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public int getBucketCount() {
+            return buckets.length;
+        }
+
+        /**
+         * @return number of durations of at least {@code 2^(bucket - 1)} and less
+         * than {@code 2^bucket} nanoseconds; the last bucket has no upper bound.
+         */
+        public long getCount(int bucket) {
+            return buckets[bucket];
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given fraction of
+         * durations, e.g. 0.99, or 0 without any.
+         */
+        public long getPercentileNanos(double fraction) {
+            final long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) return 1L << i;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + getMeanNanos() + "ns p50<" + getPercentileNanos(0.5)
+                    + "ns p99<" + getPercentileNanos(0.99) + "ns";
+        }
+    }
+
+    private final long[] accepted = new long[8];
+
+    private final long[] filtered = new long[8];
+
+    private final long[] suppressed = new long[8];
+
+    private final Map<Sink, Long> bytesWritten;
+
+    private final long fileOpens;
+
+    private final long fileWrites;
+
+    private final long fileFlushes;
+
+    private final long fileSyncs;
+
+    private final long stackCaptures;
+
+    private final Histogram writeLatency;
+
+    private final Histogram syncLatency;
+
+    private final int queueDepth;
+
+    private final int maxQueueDepth;
+
+    private final long droppedEvents;
+
+    LogMetrics(Sink[] sinks, int queueDepth, int maxQueueDepth, long droppedEvents) {
+        final StripedCounters counters = LogStats.counters();
+        for (int i = 0; i < 8; i++) {
+            accepted[i] = sum(counters, LogStats.ACCEPTED + i);
+            filtered[i] = sum(counters, LogStats.FILTERED + i);
+            suppressed[i] = sum(counters, LogStats.SUPPRESSED + i);
+        }
+        final Map<Sink, Long> bytes = new LinkedHashMap<Sink, Long>();
+        for (Sink sink : sinks) {
+            bytes.put(sink, sum(sink.bytesWritten, 0));
+        }
+        bytesWritten = Collections.unmodifiableMap(bytes);
+        fileOpens = sum(counters, LogStats.FILE_OPENS);
+        fileWrites = sum(counters, LogStats.FILE_WRITES);
+        fileFlushes = sum(counters, LogStats.FILE_FLUSHES);
+        fileSyncs = sum(counters, LogStats.FILE_SYNCS);
+        stackCaptures = sum(counters, LogStats.STACK_CAPTURES);
+        writeLatency = new Histogram(LogStats.histogram(LogStats.WRITE_LATENCY));
+        syncLatency = new Histogram(LogStats.histogram(LogStats.SYNC_LATENCY));
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.droppedEvents = droppedEvents;
+    }
+
+    private static long sum(StripedCounters counters, int counter) {
+        return counters != null ? counters.sum(counter) : 0;
+    }
+
+    /**
+     * @return calls at {@code priority} that reached the sinks, or the async queue.
+     */
+    public long getAcceptedCount(int priority) {
+        return accepted[priority & 7];
+    }
+
+    /**
+     * @return calls at {@code priority} below the level of every sink.
+     */
+    public long getFilteredCount(int priority) {
+        return filtered[priority & 7];
+    }
+
+    /**
+     * @return calls at {@code priority} held back by the rate limit or duplicate
+     * suppression.
+     */
+    public long getSuppressedCount(int priority) {
+        return suppressed[priority & 7];
+    }
+
+    /**
+     * @return bytes each registered sink reported from {@link Sink#append(LogEvent, String)}.
+     */
+    public Map<Sink, Long> getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of times a log file was opened.
+     */
+    public long getFileOpenCount() {
+        return fileOpens;
+    }
+
+    /**
+     * @return number of buffered batches written to log files.
+     */
+    public long getFileWriteCount() {
+        return fileWrites;
+    }
+
+    /**
+     * @return number of explicit or timed flushes of the file buffers.
+     */
+    public long getFileFlushCount() {
+        return fileFlushes;
+    }
+
+    /**
+     * @return number of times a log file was forced to storage.
+     */
+    public long getFileSyncCount() {
+        return fileSyncs;
+    }
+
+    /**
+     * @return time taken to write one buffered batch to a log file.
+     */
+    public Histogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * @return time taken to force a log file to storage.
+     */
+    public Histogram getSyncLatency() {
+        return syncLatency;
+    }
+
+    /**
+     * @return number of stacks captured to find a caller location.
+     */
+    public long getStackCaptureCount() {
+        return stackCaptures;
+    }
+
+    /**
+     * @return events waiting for the async writer when the snapshot was taken.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return most events the current async writer has seen waiting.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return same as {@link Log#getDroppedEventCount()}.
+     */
+    public long getDroppedEventCount() {
+        return droppedEvents;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder out = new StringBuilder(512);
+        for (int priority = Log.VERBOSE; priority <= Log.ASSERT; priority++) {
+            out.append(LogDecoder.levelName(priority)).append(": accepted=").append(accepted[priority])
+                    .append(" filtered=").append(filtered[priority])
+                    .append(" suppressed=").append(suppressed[priority]).append('\n');
+        }
+        for (Map.Entry<Sink, Long> entry : bytesWritten.entrySet()) {
+            out.append("sink ").append(entry.getKey()).append(": ").append(entry.getValue()).append(" bytes\n");
+        }
+        out.append("file: opens=").append(fileOpens).append(" writes=").append(fileWrites)
+                .append(" flushes=").append(fileFlushes).append(" syncs=").append(fileSyncs).append('\n');
+        out.append("write latency: ").append(writeLatency).append('\n');
+        out.append("sync latency: ").append(syncLatency).append('\n');
+        out.append("queue: depth=").append(queueDepth).append(" max=").append(maxQueueDepth)
+                .append(" dropped=").append(droppedEvents).append('\n');
+        out.append("stack captures: ").append(stackCaptures).append('\n');
+        return out.toString();
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the records of one or more log files and their rolled segments that
+ * fall in a time range and pass a level and tag filter. Records of several logs,
+ * such as the per-process files of {@link Log#MULTI_PROCESS_SEGMENTS}, are merged
+ * by time. Plain Java, so it runs on a desktop:
+ * <pre>
+ * java -cp util-log.jar com.itsmechlark.util.LogReader [--from 2013-10-18T14:30:00] [--to 2013-10-18T14:35:00]
+ *         [--level WARN] [--tag Net*] app.log
+ * </pre>
+ * The command line includes the per-process files of each log it is given.
+ * <p/>
+ * Text files with a {@link LogIndex} sidecar are read by seeking straight to the
+ * blocks that can hold a match; the part of a file the index does not cover is
+ * scanned. Segments rolled before the range starts are skipped by name, and
+ * reading stops at the first segment rolled after it ends. Compressed segments
+ * cannot be seeked and are scanned, binary files are decoded with
+ * {@link LogDecoder}; JSON and logfmt files are not supported.
+ * <p/>
+ * Text records only keep whole seconds, so the range is compared at that
+ * precision and reported times are truncated to the second.
+ */
+public final class LogReader {
+
+    private static final String HEADER_PREFIX = "Logged at ";
+
+    /**
+     * Length of "Logged at HH:mm:ss MM-dd-yyyy".
+     */
+    private static final int HEADER_LENGTH = HEADER_PREFIX.length() + 19;
+
+    /**
+     * Length of the "yyyyMMdd-HHmmss" roll time in a segment name.
+     */
+    private static final int ROLL_TIME_LENGTH = 15;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final File[] files;
+
+    private long from = Long.MIN_VALUE;
+
+    private long to = Long.MAX_VALUE;
+
+    private int level;
+
+    private String tag;
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    /**
+     * @param files current log files, e.g. {@code files/log/app.log}; their
+     *              segments are found next to them.
+     */
+    public LogReader(File... files) {
+        this.files = files.clone();
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        final List<File> files = new ArrayList<File>();
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        int level = 0;
+        String tag = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--from".equals(args[i]) && i + 1 < args.length) {
+                from = format.parse(args[++i]).getTime();
+            } else if ("--to".equals(args[i]) && i + 1 < args.length) {
+                to = format.parse(args[++i]).getTime();
+            } else if ("--level".equals(args[i]) && i + 1 < args.length) {
+                level = levelOf(args[++i]);
+            } else if ("--tag".equals(args[i]) && i + 1 < args.length) {
+                tag = args[++i];
+            } else {
+                files.addAll(Arrays.asList(withProcessFiles(new File(args[i]))));
+            }
+        }
+        new LogReader(files.toArray(new File[files.size()])).from(from).to(to).level(level).tag(tag)
+                .read(LogDecoder.textWriter(out));
+        out.flush();
+    }
+
+    /**
+     * @return {@code file} followed by the files other processes write for it
+     * under {@link Log#MULTI_PROCESS_SEGMENTS}, named {@code <file>-<process>}.
+     */
+    public static File[] withProcessFiles(File file) {
+        final String prefix = file.getName() + "-";
+        final File[] others = file.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                if (!name.startsWith(prefix) || name.length() == prefix.length()) return false;
+                for (int i = prefix.length(); i < name.length(); i++) {
+                    final char c = name.charAt(i);
+                    if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) return false;
+                }
+                return true;
+            }
+        });
+        if (others == null) return new File[]{file};
+        Arrays.sort(others);
+        final File[] files = new File[others.length + 1];
+        files[0] = file;
+        System.arraycopy(others, 0, files, 1, others.length);
+        return files;
+    }
+
+    /**
+     * Only reads records logged at or after {@code timeMillis}.
+     */
+    public LogReader from(long timeMillis) {
+        from = timeMillis == Long.MIN_VALUE ? timeMillis : floorSecond(timeMillis);
+        return this;
+    }
+
+    /**
+     * Only reads records logged before {@code timeMillis}.
+     */
+    public LogReader to(long timeMillis) {
+        to = timeMillis;
+        return this;
+    }
+
+    /**
+     * Only reads records at {@code priority} or above, e.g. {@link Log#WARN}.
+     */
+    public LogReader level(int priority) {
+        level = Math.max(0, Math.min(priority, 31));
+        return this;
+    }
+
+    /**
+     * Only reads records with this tag as written to the file, which is the
+     * configured scope plus the caller location when that is enabled; a trailing
+     * '*' matches a prefix. Null reads every tag.
+     */
+    public LogReader tag(String tag) {
+        this.tag = tag;
+        return this;
+    }
+
+    /**
+     * Delivers the matching records, oldest segment first; records of different
+     * logs are interleaved by time, the first log winning ties. Each log is
+     * streamed, so memory does not grow with the size of the files. A record cut
+     * short by a crash ends its file quietly.
+     *
+     * @throws IOException if a file cannot be read or is not in a supported format.
+     */
+    public void read(LogDecoder.Handler handler) throws IOException {
+        final PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(files.length, 1), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor a, Cursor b) {
+                if (a.record.time != b.record.time) return a.record.time < b.record.time ? -1 : 1;
+                return a.order - b.order;
+            }
+        });
+        final Cursor[] cursors = new Cursor[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                cursors[i] = new Cursor(files[i], i);
+                if (cursors[i].advance()) queue.add(cursors[i]);
+            }
+            while (!queue.isEmpty()) {
+                final Cursor cursor = queue.poll();
+                final Record record = cursor.record;
+                handler.record(record.time, record.priority, record.tag, record.msg);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                if (cursor != null) cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return the rolled segments of {@code file}, oldest first.
+     */
+    static File[] segments(File file) {
+        final String prefix = file.getName() + ".";
+        final File directory = file.getAbsoluteFile().getParentFile();
+        final File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.length() > prefix.length()
+                        && Character.isDigit(name.charAt(prefix.length()))
+                        && !name.endsWith(".tmp") && !name.endsWith(LogIndex.SUFFIX);
+            }
+        });
+        if (segments == null) return new File[0];
+        Arrays.sort(segments, segmentOrder(file));
+        return segments;
+    }
+
+    /**
+     * @return orders the segments of {@code file} by roll time, oldest first.
+     */
+    static Comparator<File> segmentOrder(File file) {
+        final int start = file.getName().length() + 1;
+        return new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final String x = a.getName();
+                final String y = b.getName();
+                final int byTime = x.regionMatches(start, y, start, ROLL_TIME_LENGTH) ? 0 : x.compareTo(y);
+                if (byTime != 0) return byTime;
+                // Segments rolled within the same second are numbered "-1", "-2", ...
+                final long m = counter(x, start);
+                final long n = counter(y, start);
+                return m != n ? (m < n ? -1 : 1) : x.compareTo(y);
+            }
+        };
+    }
+
+    /**
+     * @return the "-N" counter after the roll time of a segment name, 0 without one.
+     */
+    private static long counter(String name, int start) {
+        int i = start + ROLL_TIME_LENGTH;
+        if (i >= name.length() || name.charAt(i) != '-') return 0;
+        long value = 0;
+        while (++i < name.length() && name.charAt(i) >= '0' && name.charAt(i) <= '9') {
+            value = value * 10 + name.charAt(i) - '0';
+        }
+        return value;
+    }
+
+    /**
+     * @return the roll time in the name of a segment of {@code file}, or -1 if it
+     * has none.
+     */
+    private static long rollTime(File file, File segment) {
+        final String name = segment.getName();
+        final int start = file.getName().length() + 1;
+        if (name.length() < start + ROLL_TIME_LENGTH) return -1;
+        try {
+            return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                    .parse(name.substring(start, start + ROLL_TIME_LENGTH)).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private boolean matches(Record record) {
+        if (record.time < from || record.time >= to || record.priority < level) return false;
+        if (tag == null) return true;
+        if (record.tag == null) return false;
+        if (tag.endsWith("*")) return record.tag.startsWith(tag.substring(0, tag.length() - 1));
+        return record.tag.equals(tag);
+    }
+
+    private static InputStream open(File file, boolean compressed) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        return compressed ? new GZIPInputStream(in, READ_BUFFER_SIZE) : in;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return the time of a "Logged at HH:mm:ss MM-dd-yyyy" line, or
+     * {@link Long#MIN_VALUE} if {@code line} is not one.
+     */
+    private long parseHeader(String line) {
+        if (line.length() != HEADER_LENGTH || !line.startsWith(HEADER_PREFIX)) return Long.MIN_VALUE;
+        final int p = HEADER_PREFIX.length();
+        final int hour = digits(line, p, 2);
+        final int minute = digits(line, p + 3, 2);
+        final int second = digits(line, p + 6, 2);
+        final int month = digits(line, p + 9, 2);
+        final int day = digits(line, p + 12, 2);
+        final int year = digits(line, p + 15, 4);
+        if ((hour | minute | second | month | day | year) < 0) return Long.MIN_VALUE;
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static int digits(String s, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Inverse of {@link LogDecoder#levelName(int)}; also accepts single letters.
+     */
+    static int levelOf(String name) {
+        for (int priority = 2; priority <= 7; priority++) {
+            final String levelName = LogDecoder.levelName(priority);
+            if (levelName.equalsIgnoreCase(name) || name.length() == 1 && levelName.charAt(0) == Character.toUpperCase(name.charAt(0))) {
+                return priority;
+            }
+        }
+        return 0;
+    }
+
+    private static long floorSecond(long millis) {
+        return millis >= 0 ? millis / 1000 * 1000 : (millis - 999) / 1000 * 1000;
+    }
+
+    /**
+     * The record a source read last.
+     */
+    private static final class Record implements LogDecoder.Handler {
+
+        long time;
+
+        int priority;
+
+        String tag;
+
+        String msg;
+
+        @Override
+        public void record(long timeMillis, int priority, String tag, String msg) {
+            this.time = timeMillis;
+            this.priority = priority;
+            this.tag = tag;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * Records of one file, in file order.
+     */
+    private interface Source extends Closeable {
+        /**
+         * @return false at the end.
+         */
+        boolean next(Record record) throws IOException;
+    }
+
+    /**
+     * The matching records of one log: its segments, oldest first, then the
+     * current file. Files are opened one at a time as the cursor reaches them.
+     */
+    private final class Cursor implements Closeable {
+
+        final Record record = new Record();
+
+        final int order;
+
+        private final File file;
+
+        private final File[] segments;
+
+        /**
+         * Index into {@link #segments} of the next file to open; the current file
+         * comes after the last segment.
+         */
+        private int next;
+
+        private boolean done;
+
+        private Source source;
+
+        Cursor(File file, int order) {
+            this.file = file;
+            this.order = order;
+            segments = segments(file);
+        }
+
+        /**
+         * Moves to the next matching record.
+         *
+         * @return false once the log has no more.
+         */
+        boolean advance() throws IOException {
+            while (true) {
+                if (source == null && !openNext()) return false;
+                if (!source.next(record)) {
+                    close();
+                    continue;
+                }
+                if (matches(record)) return true;
+            }
+        }
+
+        private boolean openNext() throws IOException {
+            while (!done) {
+                if (next == segments.length) {
+                    done = true;
+                    if (file.isFile()) {
+                        source = openFile(file);
+                        return true;
+                    }
+                    return false;
+                }
+                final File segment = segments[next++];
+                final long rolledAt = rollTime(file, segment);
+                // A segment only holds records up to its roll time.
+                if (rolledAt >= 0 && rolledAt + 1000 <= from) continue;
+                // Later files only hold records from this roll time on.
+                if (rolledAt >= to) done = true;
+                source = openFile(segment);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(source);
+            source = null;
+        }
+    }
+
+    private Source openFile(File file) throws IOException {
+        final boolean compressed = file.getName().endsWith(".gz");
+        final byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        int read = 0;
+        final InputStream probe = open(file, compressed);
+        try {
+            for (int n; read < magic.length && (n = probe.read(magic, read, magic.length - read)) > 0; ) {
+                read += n;
+            }
+        } finally {
+            probe.close();
+        }
+        if (read == magic.length && Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+            final InputStream in = open(file, compressed);
+            final LogDecoder decoder = new LogDecoder(in);
+            return new Source() {
+                @Override
+                public boolean next(Record record) throws IOException {
+                    return decoder.next(record);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+        if (read > 0 && (magic[0] == '{' || read == magic.length && new String(magic, "US-ASCII").equals("time"))) {
+            throw new IOException("Unsupported log format in " + file);
+        }
+        if (compressed) {
+            final List<long[]> whole = new ArrayList<long[]>(1);
+            whole.add(new long[]{0, -1});
+            return new TextSource(file, true, whole);
+        }
+        return new TextSource(file, false, ranges(file));
+    }
+
+    /**
+     * @return the byte ranges of a text file to scan, as {start, end} with an
+     * end of -1 for the end of the file: the indexed blocks that can hold a
+     * match, and everything the index does not cover.
+     */
+    private List<long[]> ranges(File file) throws IOException {
+        final List<long[]> ranges = new ArrayList<long[]>();
+        final long length = file.length();
+        long position = 0;
+        for (LogIndex entry : LogIndex.read(file)) {
+            // Left over from a file that was replaced, or overlapping a previous entry.
+            if (entry.start < position || entry.end > length || entry.end <= entry.start) continue;
+            if (entry.start > position) addRange(ranges, position, entry.start);
+            if (entry.maxTime >= from && floorSecond(entry.minTime) < to && (entry.levels & (-1 << level)) != 0) {
+                addRange(ranges, entry.start, entry.end);
+            }
+            position = entry.end;
+        }
+        addRange(ranges, position, -1);
+        return ranges;
+    }
+
+    private static void addRange(List<long[]> ranges, long start, long end) {
+        if (!ranges.isEmpty()) {
+            final long[] last = ranges.get(ranges.size() - 1);
+            if (last[1] == start) {
+                last[1] = end;
+                return;
+            }
+        }
+        ranges.add(new long[]{start, end});
+    }
+
+    /**
+     * Parses text records from byte ranges of a file. A range ends before the
+     * first record that starts at or after its end.
+     */
+    private final class TextSource implements Source {
+
+        private final File file;
+
+        private final boolean compressed;
+
+        private final List<long[]> ranges;
+
+        private int nextRange;
+
+        private InputStream in;
+
+        private LineReader lines;
+
+        private long end;
+
+        private long time;
+
+        private int priority;
+
+        private String recordTag;
+
+        private StringBuilder msg;
+
+        private boolean expectLevel;
+
+        TextSource(File file, boolean compressed, List<long[]> ranges) {
+            this.file = file;
+            this.compressed = compressed;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public boolean next(Record record) throws IOException {
+            while (true) {
+                if (lines == null) {
+                    if (nextRange == ranges.size()) return false;
+                    openRange(ranges.get(nextRange++));
+                }
+                final String line = lines.next();
+                if (line == null) {
+                    close();
+                    if (complete(record)) return true;
+                    continue;
+                }
+
+                final long header = parseHeader(line);
+                if (header != Long.MIN_VALUE) {
+                    final boolean completed = complete(record);
+                    if (end >= 0 && lines.lineStart >= end) {
+                        close();
+                    } else {
+                        time = header;
+                        expectLevel = true;
+                    }
+                    if (completed) return true;
+                } else if (expectLevel) {
+                    expectLevel = false;
+                    final int at = line.indexOf('@');
+                    final int tab = line.indexOf('\t', at + 1);
+                    if (at < 0 || tab < 0) continue;
+                    priority = levelOf(line.substring(0, at));
+                    recordTag = line.substring(at + 1, tab);
+                    msg = new StringBuilder(line.length() - tab).append(line, tab + 1, line.length());
+                } else if (msg != null) {
+                    msg.append('\n').append(line);
+                }
+            }
+        }
+
+        private void openRange(long[] range) throws IOException {
+            if (compressed) {
+                in = open(file, true);
+            } else {
+                final FileInputStream stream = new FileInputStream(file);
+                in = stream;
+                stream.getChannel().position(range[0]);
+            }
+            lines = new LineReader(in, range[0]);
+            end = range[1];
+            msg = null;
+            expectLevel = false;
+        }
+
+        /**
+         * Hands the record being parsed, if any, to {@code record}.
+         */
+        private boolean complete(Record record) {
+            if (msg == null) return false;
+            record.record(time, priority, recordTag, msg.toString());
+            msg = null;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(in);
+            in = null;
+            lines = null;
+        }
+    }
+
+    /**
+     * Splits UTF-8 text into lines, tracking the byte offset each line starts at.
+     */
+    private static final class LineReader {
+
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+        private byte[] line = new byte[256];
+
+        private int position;
+
+        private int limit;
+
+        private long offset;
+
+        long lineStart;
+
+        LineReader(InputStream in, long offset) {
+            this.in = in;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the next line without its '\n', or null at the end.
+         */
+        String next() throws IOException {
+            lineStart = offset;
+            int length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length > 0 ? new String(line, 0, length, "UTF-8") : null;
+                    }
+                }
+                final byte b = buffer[position++];
+                offset++;
+                if (b == '\n') return new String(line, 0, length, "UTF-8");
+                if (length == line.length) {
+                    final byte[] grown = new byte[line.length * 2];
+                    System.arraycopy(line, 0, grown, 0, length);
+                    line = grown;
+                }
+                line[length++] = b;
+            }
+        }
+    }
+}
@@ -0,0 +1,645 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads a log written by the file sink, and its rolled segments, to an HTTP
+ * collector in the background. Plain Java, so it can be pointed at a local
+ * stand-in server:
+ * <pre>
+ * final LogShipper shipper = new LogShipper(new File(context.getFilesDir(), "log/app.log"), url)
+ *         .constraint(new DeviceConstraint(context, true))
+ *         .byteBudget(5 * 1024 * 1024, 24 * 60 * 60 * 1000L);
+ * shipper.start();
+ * </pre>
+ * The files are read oldest segment first, up to {@link #batchSize(int)} bytes at
+ * a time, and each batch is cut after its last complete line, gzipped and POSTed
+ * with {@code Content-Encoding: gzip}. A batch is a contiguous byte range of one
+ * file: {@code X-Log-File} names the log, {@code X-Log-Stream} identifies the file
+ * by a checksum of its first bytes, which survive rolling and compression, and
+ * {@code X-Log-Offset} is the uncompressed offset of the batch in it.
+ * <p/>
+ * Only after a 2xx response is the new offset saved to {@code <file>.ship},
+ * written to a temporary file, synced and renamed, so a restart resumes after the
+ * last acknowledged batch and nothing is sent twice unless the response itself
+ * was lost. A file that was pruned or replaced under the saved offset is detected
+ * by its checksum and shipped from its start. With {@link #deleteShipped(boolean)}
+ * a rolled segment is deleted once all of it has been acknowledged.
+ * <p/>
+ * Failed uploads are retried with exponential backoff and jitter, honouring a
+ * {@code Retry-After} in seconds. A batch the collector rejects as malformed
+ * (400, 413, 415 or 422) is dropped rather than retried forever. Shipping pauses
+ * while the {@link Constraint} says the device is constrained, and once the
+ * compressed bytes sent in the current budget period reach the budget.
+ * <p/>
+ * Logs written under {@link Log#MULTI_PROCESS_SEGMENTS} need one shipper per
+ * process file, see {@link LogReader#withProcessFiles(File)}.
+ */
+public final class LogShipper {
+
+    /**
+     * Decides whether shipping should pause, checked before every batch.
+     */
+    public interface Constraint {
+        boolean isConstrained();
+    }
+
+    static final String STATE_SUFFIX = ".ship";
+
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * Number of leading bytes that identify a file.
+     */
+    private static final int HEAD_LENGTH = 256;
+
+    private static final int SKIP_BUFFER_SIZE = 8 * 1024;
+
+    private final File file;
+
+    private final URL endpoint;
+
+    private final File stateFile;
+
+    private final Object threadLock = new Object();
+
+    private final Random random = new Random();
+
+    private volatile Constraint constraint;
+
+    private volatile int batchSize = 64 * 1024;
+
+    private volatile long byteBudget;
+
+    private volatile long budgetPeriod = 24 * 60 * 60 * 1000L;
+
+    private volatile long pollInterval = 60 * 1000L;
+
+    private volatile long minBackoff = 1000L;
+
+    private volatile long maxBackoff = 5 * 60 * 1000L;
+
+    private volatile int timeout = 30 * 1000;
+
+    private volatile boolean deleteShipped;
+
+    /**
+     * Guarded by this, like the rest of the shipping state below.
+     */
+    private State state;
+
+    private Source source;
+
+    private final Body body = new Body();
+
+    private long retryAfter;
+
+    /**
+     * Guarded by threadLock.
+     */
+    private Thread thread;
+
+    /**
+     * @param file     the log, e.g. {@code files/log/app.log}; its segments are found next to it.
+     * @param endpoint where batches are POSTed.
+     */
+    public LogShipper(File file, URL endpoint) {
+        this.file = file.getAbsoluteFile();
+        this.endpoint = endpoint;
+        stateFile = new File(this.file.getPath() + STATE_SUFFIX);
+    }
+
+    /**
+     * Pauses shipping while {@code constraint} reports the device constrained.
+     */
+    public LogShipper constraint(Constraint constraint) {
+        this.constraint = constraint;
+        return this;
+    }
+
+    /**
+     * Uncompressed bytes read per batch, 64 KiB by default. A single line longer
+     * than this is split across batches.
+     */
+    public LogShipper batchSize(int bytes) {
+        batchSize = Math.max(1024, bytes);
+        return this;
+    }
+
+    /**
+     * Caps the compressed bytes sent per {@code periodMillis}; 0 bytes, the
+     * default, means no cap.
+     */
+    public LogShipper byteBudget(long bytes, long periodMillis) {
+        byteBudget = Math.max(0, bytes);
+        budgetPeriod = Math.max(1, periodMillis);
+        return this;
+    }
+
+    /**
+     * How long the background thread waits after catching up, being paused or
+     * running out of budget before it looks again, one minute by default.
+     */
+    public LogShipper pollInterval(long millis) {
+        pollInterval = Math.max(1, millis);
+        return this;
+    }
+
+    /**
+     * Backoff after the first failed upload, doubled per consecutive failure up
+     * to {@code maxMillis}; one second and five minutes by default.
+     */
+    public LogShipper backoff(long minMillis, long maxMillis) {
+        minBackoff = Math.max(1, minMillis);
+        maxBackoff = Math.max(minBackoff, maxMillis);
+        return this;
+    }
+
+    /**
+     * Connect and read timeout of an upload, 30 seconds by default.
+     */
+    public LogShipper timeout(int millis) {
+        timeout = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Deletes a rolled segment, and its index, once all of it has been
+     * acknowledged; off by default. The log itself is never deleted.
+     */
+    public LogShipper deleteShipped(boolean delete) {
+        deleteShipped = delete;
+        return this;
+    }
+
+    /**
+     * Starts shipping on a daemon thread; does nothing if already started.
+     */
+    public void start() {
+        synchronized (threadLock) {
+            if (thread != null) return;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "Log-shipper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the background thread once an upload in progress has finished.
+     */
+    public void stop() {
+        synchronized (threadLock) {
+            if (thread == null) return;
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private boolean isCurrent(Thread self) {
+        synchronized (threadLock) {
+            return thread == self;
+        }
+    }
+
+    private void loop() {
+        final Thread self = Thread.currentThread();
+        long backoff = 0;
+        try {
+            while (isCurrent(self)) {
+                long wait = pollInterval;
+                boolean failed = false;
+                try {
+                    ship();
+                    backoff = 0;
+                } catch (IOException e) {
+                    failed = true;
+                } catch (RuntimeException e) {
+                    // A bug must not end shipping for good, nor spin on the same batch.
+                    if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to ship " + file, e);
+                    synchronized (this) {
+                        // Start over from what was saved as acknowledged.
+                        closeSource();
+                        state = null;
+                    }
+                    failed = true;
+                }
+                if (failed) {
+                    backoff = backoff == 0 ? minBackoff : Math.min(backoff * 2, maxBackoff);
+                    // Half fixed, half random, so a fleet that failed together spreads out.
+                    wait = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+                    synchronized (this) {
+                        wait = Math.max(wait, retryAfter);
+                        retryAfter = 0;
+                    }
+                }
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException stopped) {
+                    // Checked by the loop condition.
+                }
+            }
+        } finally {
+            synchronized (this) {
+                closeSource();
+            }
+        }
+    }
+
+    /**
+     * Ships batches until caught up with the log, paused by the constraint or
+     * the budget, or interrupted.
+     *
+     * @return the number of uncompressed bytes acknowledged.
+     * @throws IOException if reading the log or an upload failed; the batch is
+     *                     retried from the same offset by the next call.
+     */
+    public synchronized long ship() throws IOException {
+        if (state == null) state = State.load(stateFile);
+        long shipped = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            final Constraint constraint = this.constraint;
+            if (constraint != null && constraint.isConstrained()) break;
+
+            final File target = target();
+            if (target == null) break;
+            final boolean segment = target != file;
+            final long offset = state.offset;
+            final Source source = open(target, offset);
+            if (source == null) {
+                // The file under the saved offset is gone; this one starts afresh.
+                state.offset = 0;
+                state.headLength = 0;
+                continue;
+            }
+            source.fill();
+
+            final byte[] buffer = source.buffer;
+            int length = source.length;
+            if (length == 0) {
+                if (!segment) break;
+                state.lastSegment = baseName(target);
+                state.offset = 0;
+                state.headLength = 0;
+                closeSource();
+                state.save(stateFile);
+                if (deleteShipped) delete(target);
+                continue;
+            }
+            int cut = lastLineEnd(buffer, length);
+            if (cut == 0) {
+                // No complete line: wait for the writer unless it cannot finish it.
+                if (length < buffer.length && !(segment && source.eof)) break;
+                cut = length;
+            }
+
+            compress(buffer, cut);
+            if (byteBudget > 0) {
+                final long now = System.currentTimeMillis();
+                if (now - state.windowStart >= budgetPeriod || now < state.windowStart) {
+                    state.windowStart = now;
+                    state.windowBytes = 0;
+                }
+                if (state.windowBytes > 0 && state.windowBytes + body.size() > byteBudget) break;
+            }
+            if (offset == 0) {
+                state.headLength = Math.min(HEAD_LENGTH, cut);
+                state.headCrc = checksum(buffer, state.headLength);
+            }
+            post(offset);
+
+            source.consume(cut);
+            state.offset = offset + cut;
+            state.windowBytes += body.size();
+            state.save(stateFile);
+            shipped += cut;
+        }
+        return shipped;
+    }
+
+    /**
+     * @return the first segment after the last one fully shipped, else the log
+     * itself, or null if neither exists.
+     */
+    private File target() {
+        final Comparator<File> order = LogReader.segmentOrder(file);
+        final File last = state.lastSegment.length() == 0 ? null : new File(state.lastSegment);
+        for (File segment : LogReader.segments(file)) {
+            // A segment and its compressed copy may both exist while it is compressed.
+            if (last == null || order.compare(new File(baseName(segment)), last) > 0) return segment;
+        }
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Deletes a shipped segment together with a copy being compressed meanwhile.
+     */
+    private static void delete(File segment) {
+        final File plain = new File(segment.getParentFile(), baseName(segment));
+        final File[] files = {plain, new File(plain.getPath() + LogArchiver.GZIP_SUFFIX)};
+        for (File shipped : files) {
+            shipped.delete();
+            LogIndex.indexFile(shipped).delete();
+        }
+    }
+
+    private static String baseName(File segment) {
+        final String name = segment.getName();
+        return name.endsWith(LogArchiver.GZIP_SUFFIX) ? name.substring(0, name.length() - LogArchiver.GZIP_SUFFIX.length()) : name;
+    }
+
+    /**
+     * @return the data of {@code target} from {@code offset}, reusing the open
+     * source when it is already there, or null if the file does not start with
+     * the bytes shipped before {@code offset}.
+     */
+    private Source open(File target, long offset) throws IOException {
+        if (source != null && source.file.equals(target) && source.start == offset) return source;
+        closeSource();
+
+        InputStream in = new FileInputStream(target);
+        try {
+            if (target.getName().endsWith(LogArchiver.GZIP_SUFFIX)) in = new GZIPInputStream(in, SKIP_BUFFER_SIZE);
+            if (offset > 0 && !skip(in, offset)) {
+                in.close();
+                return null;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        source = new Source(target, in, offset, batchSize);
+        return source;
+    }
+
+    /**
+     * Skips to {@code offset}, checking the head of the file on the way.
+     */
+    private boolean skip(InputStream in, long offset) throws IOException {
+        final byte[] buffer = new byte[SKIP_BUFFER_SIZE];
+        final int head = state.headLength;
+        if (head == 0 || readFully(in, buffer, head) < head || checksum(buffer, head) != state.headCrc) return false;
+        long remaining = offset - head;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) return false;
+            remaining -= read;
+        }
+        return true;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int read = in.read(buffer, total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    private static int lastLineEnd(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') return i + 1;
+        }
+        return 0;
+    }
+
+    private void compress(byte[] buffer, int length) throws IOException {
+        body.reset();
+        final GZIPOutputStream gzip = new GZIPOutputStream(body, SKIP_BUFFER_SIZE);
+        gzip.write(buffer, 0, length);
+        // Also releases the native deflater.
+        gzip.close();
+    }
+
+    /**
+     * Uploads the compressed batch.
+     *
+     * @throws IOException if it should be retried.
+     */
+    private void post(long offset) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        final int code;
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setFixedLengthStreamingMode(body.size());
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Log-File", file.getName());
+            connection.setRequestProperty("X-Log-Stream", Long.toHexString(state.headCrc));
+            connection.setRequestProperty("X-Log-Offset", Long.toString(offset));
+            final OutputStream out = connection.getOutputStream();
+            out.write(body.array(), 0, body.size());
+            out.close();
+            code = connection.getResponseCode();
+            // Reading the response to the end lets the connection be reused.
+            drain(code >= 400 ? connection.getErrorStream() : connection.getInputStream());
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        if (code >= 200 && code < 300) return;
+        if (code == 400 || code == 413 || code == 415 || code == 422) return;
+        retryAfter = retryAfter(connection.getHeaderField("Retry-After"));
+        throw new IOException("HTTP " + code + " from " + endpoint);
+    }
+
+    private static long retryAfter(String header) {
+        if (header == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(header.trim())) * 1000L;
+        } catch (NumberFormatException httpDate) {
+            return 0;
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try {
+            final byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void closeSource() {
+        if (source == null) return;
+        closeQuietly(source.in);
+        source = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * An open file read a batch at a time; {@code buffer} holds the next
+     * {@code length} bytes from {@code start}.
+     */
+    private static final class Source {
+
+        final File file;
+
+        final InputStream in;
+
+        final byte[] buffer;
+
+        long start;
+
+        int length;
+
+        boolean eof;
+
+        Source(File file, InputStream in, long start, int size) {
+            this.file = file;
+            this.in = in;
+            this.start = start;
+            buffer = new byte[size];
+        }
+
+        /**
+         * Reads until the buffer is full or the end of what is written so far.
+         */
+        void fill() throws IOException {
+            eof = false;
+            while (length < buffer.length) {
+                final int read = in.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    eof = true;
+                    break;
+                }
+                length += read;
+            }
+        }
+
+        void consume(int count) {
+            System.arraycopy(buffer, count, buffer, 0, length - count);
+            length -= count;
+            start += count;
+        }
+    }
+
+    /**
+     * Exposes the buffer so a batch is posted without another copy.
+     */
+    private static final class Body extends ByteArrayOutputStream {
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * What was acknowledged: every segment up to {@code lastSegment}, and
+     * {@code offset} bytes of the file after it, whose first {@code headLength}
+     * bytes have the CRC-32 {@code headCrc}. Also the budget period in progress.
+     */
+    private static final class State {
+
+        String lastSegment = "";
+
+        long offset;
+
+        int headLength;
+
+        long headCrc;
+
+        long windowStart;
+
+        long windowBytes;
+
+        static State load(File file) {
+            final State state = new State();
+            if (!file.isFile()) return state;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() != STATE_VERSION) return state;
+                state.lastSegment = in.readUTF();
+                state.offset = in.readLong();
+                state.headLength = in.readInt();
+                state.headCrc = in.readLong();
+                state.windowStart = in.readLong();
+                state.windowBytes = in.readLong();
+                if (state.headLength < 0 || state.headLength > HEAD_LENGTH || state.offset < state.headLength) return new State();
+            } catch (IOException e) {
+                return new State();
+            } finally {
+                if (in != null) closeQuietly(in);
+            }
+            return state;
+        }
+
+        void save(File file) throws IOException {
+            final File temp = new File(file.getPath() + ".tmp");
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                final DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(STATE_VERSION);
+                data.writeUTF(lastSegment);
+                data.writeLong(offset);
+                data.writeInt(headLength);
+                data.writeLong(headCrc);
+                data.writeLong(windowStart);
+                data.writeLong(windowBytes);
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) throw new IOException("Unable to rename " + temp);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * Records what the logging subsystem itself does, for {@link Log#getMetrics()}.
+ * Every recording method returns at once while {@link #enabled} is false, so
+ * with metrics off a call costs one plain field read. The counters are only
+ * allocated when metrics are turned on, and start from zero each time.
+ */
+final class LogStats {
+
+    /**
+     * Set by {@link Log.Config#setMetricsEnabled(boolean)}, through
+     * {@link #setEnabled(boolean, Sink[])}. Read without
+     * synchronization: a thread may see a change late, which only shifts a few
+     * counts.
+     */
+    static boolean enabled;
+
+    /**
+     * Counters of the current metrics period, null until metrics are first
+     * turned on.
+     */
+    private static volatile Stripes stripes;
+
+    static final int ACCEPTED = 0;
+
+    static final int FILTERED = 8;
+
+    static final int SUPPRESSED = 16;
+
+    static final int FILE_OPENS = 24;
+
+    static final int FILE_WRITES = 25;
+
+    static final int FILE_FLUSHES = 26;
+
+    static final int FILE_SYNCS = 27;
+
+    static final int STACK_CAPTURES = 28;
+
+    private static final int COUNTER_COUNT = 29;
+
+    /**
+     * Bucket {@code i} of a latency histogram counts durations of
+     * [2^(i-1), 2^i) nanoseconds; the last one everything longer.
+     */
+    static final int BUCKETS = 40;
+
+    static final int WRITE_LATENCY = 0;
+
+    static final int SYNC_LATENCY = 1;
+
+    private LogStats() {
+    }
+
+    /**
+     * Turns recording on or off; turning it on starts from zero, for every sink
+     * in {@code sinks} too.
+     */
+    static synchronized void setEnabled(boolean on, Sink[] sinks) {
+        if (on && !enabled) {
+            for (Sink sink : sinks) sink.bytesWritten = null;
+            stripes = new Stripes();
+        }
+        enabled = on;
+    }
+
+    /**
+     * @return the counters, or null if metrics were never turned on.
+     */
+    static StripedCounters counters() {
+        final Stripes current = stripes;
+        return current != null ? current.counters : null;
+    }
+
+    /**
+     * @return {@link #WRITE_LATENCY} or {@link #SYNC_LATENCY}: buckets followed
+     * by the total nanoseconds, or null if metrics were never turned on.
+     */
+    static StripedCounters histogram(int histogram) {
+        final Stripes current = stripes;
+        if (current == null) return null;
+        return histogram == WRITE_LATENCY ? current.writeLatency : current.syncLatency;
+    }
+
+    /**
+     * Counts a call below the level of every sink.
+     *
+     * @return 0, the result of a filtered log call.
+     */
+    static int filtered(int priority) {
+        if (enabled) add(FILTERED + (priority & 7));
+        return 0;
+    }
+
+    static void accepted(int priority) {
+        if (enabled) add(ACCEPTED + (priority & 7));
+    }
+
+    /**
+     * Counts a call held back by {@link LogLimiter}.
+     */
+    static void suppressed(int priority) {
+        if (enabled) add(SUPPRESSED + (priority & 7));
+    }
+
+    static void count(int counter) {
+        if (enabled) add(counter);
+    }
+
+    private static void add(int counter) {
+        final Stripes current = stripes;
+        if (current != null) current.counters.add(counter, 1);
+    }
+
+    static void wrote(Sink sink, int bytes) {
+        if (!enabled || bytes <= 0) return;
+        StripedCounters counters = sink.bytesWritten;
+        if (counters == null) {
+            // Two first writes may race; the loser's bytes are not counted.
+            counters = new StripedCounters(1);
+            sink.bytesWritten = counters;
+        }
+        counters.add(0, bytes);
+    }
+
+    /**
+     * @return a start time for {@link #record(int, long)}, or 0 while
+     * disabled.
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void record(int histogram, long start) {
+        if (start == 0) return;
+        final StripedCounters counters = histogram(histogram);
+        if (counters == null) return;
+        final long nanos = Math.max(System.nanoTime() - start, 0);
+        counters.add(Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1), 1);
+        counters.add(BUCKETS, nanos);
+    }
+
+    private static final class Stripes {
+
+        final StripedCounters counters = new StripedCounters(COUNTER_COUNT);
+
+        final StripedCounters writeLatency = new StripedCounters(BUCKETS + 1);
+
+        final StripedCounters syncLatency = new StripedCounters(BUCKETS + 1);
+    }
+}
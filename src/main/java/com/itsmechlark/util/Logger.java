@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * A logging handle for one tag, created once with {@link Log#forTag(String)} and
+ * kept in a static field:
+ * <pre>
+ * private static final Logger LOG = Log.forTag("Net");
+ * ...
+ * LOG.debugf("connected to %s", host);
+ * </pre>
+ * The tag's effective level, including tag levels and sink levels, is cached
+ * here and updated by {@link Log} whenever the configuration changes, so a
+ * disabled call reads one volatile field and returns. Loggers are immutable
+ * apart from that field and safe to share between threads.
+ */
+public final class Logger {
+
+    private final String tag;
+
+    volatile int level;
+
+    Logger(String tag) {
+        this.tag = tag;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    public boolean isDebugEnabled() {
+        return Log.DEBUG >= level;
+    }
+
+    public boolean isVerboseEnabled() {
+        return Log.VERBOSE >= level;
+    }
+
+    /**
+     * Starts a structured event with this logger's tag, see {@link Log#at(int)}.
+     */
+    public EventBuilder at(int priority) {
+        if (priority < level) {
+            LogStats.filtered(priority);
+            return EventBuilder.DISABLED;
+        }
+        return EventBuilder.obtain(priority, tag);
+    }
+
+    public int println(int priority, String msg) {
+        if (priority < level) return LogStats.filtered(priority);
+        return Log.logFor(tag, priority, msg, null);
+    }
+
+    public int v(String msg) {
+        if (Log.VERBOSE < level) return LogStats.filtered(Log.VERBOSE);
+        return Log.logFor(tag, Log.VERBOSE, msg, null);
+    }
+
+    public int v(String msg, Throwable tr) {
+        if (Log.VERBOSE < level) return LogStats.filtered(Log.VERBOSE);
+        return Log.logFor(tag, Log.VERBOSE, msg, tr);
+    }
+
+    /**
+     * Logs {@code String.format(format, args)}, formatted only if a sink takes it.
+     * Named like {@link Log#verbosef(String, Object...)} so that a call with a
+     * single {@link Throwable} argument cannot bind to {@code (String, Throwable)}.
+     */
+    public int verbosef(String format, Object... args) {
+        if (Log.VERBOSE < level) return LogStats.filtered(Log.VERBOSE);
+        return Log.logLazilyFor(tag, Log.VERBOSE, format, args);
+    }
+
+    public int d(String msg) {
+        if (Log.DEBUG < level) return LogStats.filtered(Log.DEBUG);
+        return Log.logFor(tag, Log.DEBUG, msg, null);
+    }
+
+    public int d(String msg, Throwable tr) {
+        if (Log.DEBUG < level) return LogStats.filtered(Log.DEBUG);
+        return Log.logFor(tag, Log.DEBUG, msg, tr);
+    }
+
+    /**
+     * Logs {@code String.format(format, args)}, formatted only if a sink takes it.
+     */
+    public int debugf(String format, Object... args) {
+        if (Log.DEBUG < level) return LogStats.filtered(Log.DEBUG);
+        return Log.logLazilyFor(tag, Log.DEBUG, format, args);
+    }
+
+    public int i(String msg) {
+        if (Log.INFO < level) return LogStats.filtered(Log.INFO);
+        return Log.logFor(tag, Log.INFO, msg, null);
+    }
+
+    public int i(String msg, Throwable tr) {
+        if (Log.INFO < level) return LogStats.filtered(Log.INFO);
+        return Log.logFor(tag, Log.INFO, msg, tr);
+    }
+
+    /**
+     * Logs {@code String.format(format, args)}, formatted only if a sink takes it.
+     */
+    public int infof(String format, Object... args) {
+        if (Log.INFO < level) return LogStats.filtered(Log.INFO);
+        return Log.logLazilyFor(tag, Log.INFO, format, args);
+    }
+
+    public int w(String msg) {
+        if (Log.WARN < level) return LogStats.filtered(Log.WARN);
+        return Log.logFor(tag, Log.WARN, msg, null);
+    }
+
+    public int w(String msg, Throwable tr) {
+        if (Log.WARN < level) return LogStats.filtered(Log.WARN);
+        return Log.logFor(tag, Log.WARN, msg, tr);
+    }
+
+    public int w(Throwable tr) {
+        if (Log.WARN < level) return LogStats.filtered(Log.WARN);
+        return Log.logFor(tag, Log.WARN, null, tr);
+    }
+
+    /**
+     * Logs {@code String.format(format, args)}, formatted only if a sink takes it.
+     */
+    public int warnf(String format, Object... args) {
+        if (Log.WARN < level) return LogStats.filtered(Log.WARN);
+        return Log.logLazilyFor(tag, Log.WARN, format, args);
+    }
+
+    public int e(String msg) {
+        if (Log.ERROR < level) return LogStats.filtered(Log.ERROR);
+        return Log.logFor(tag, Log.ERROR, msg, null);
+    }
+
+    public int e(String msg, Throwable tr) {
+        if (Log.ERROR < level) return LogStats.filtered(Log.ERROR);
+        return Log.logFor(tag, Log.ERROR, msg, tr);
+    }
+
+    public int e(Throwable tr) {
+        if (Log.ERROR < level) return LogStats.filtered(Log.ERROR);
+        return Log.logFor(tag, Log.ERROR, null, tr);
+    }
+
+    /**
+     * Logs {@code String.format(format, args)}, formatted only if a sink takes it.
+     */
+    public int errorf(String format, Object... args) {
+        if (Log.ERROR < level) return LogStats.filtered(Log.ERROR);
+        return Log.logLazilyFor(tag, Log.ERROR, format, args);
+    }
+
+    @Override
+    public String toString() {
+        return "Logger[" + tag + "]";
+    }
+}
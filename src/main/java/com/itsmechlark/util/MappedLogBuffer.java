@@ -0,0 +1,335 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-size circular log kept in a memory-mapped {@code <name>.mmap} file. A
+ * record is copied into the mapping and left to the kernel, so appending costs
+ * about a memcpy and records survive the process dying.
+ * <p/>
+ * Layout: a 16 byte file header, then 4-byte aligned records of
+ * {@code [magic][length][sequence][crc32][UTF-8 text record]}; the CRC covers
+ * sequence, length and payload. When a record does not fit before the end the
+ * writer wraps to the start, overwriting the oldest records.
+ * <p/>
+ * When the buffer is opened, the previous run's file is renamed to
+ * {@code <name>.mmap.pending<time>} and a new, sparse one is mapped, so the
+ * thread logging first only pays for a rename. The "Log-init" thread then
+ * appends every pending record with a valid CRC to {@code <name>.recovered} in
+ * sequence order and deletes the pending file. Once {@code <name>.recovered}
+ * reaches {@link Log.Config#getMaxFileSize()} it is rolled, compressed and pruned
+ * like the log file, so {@link LogReader} reads it the same way. Each process of
+ * the app maps a file of its own, see {@link ProcessName}.
+ */
+final class MappedLogBuffer {
+
+    private static final int FILE_MAGIC = 0x554d4150; // "UMAP"
+
+    private static final int VERSION = 1;
+
+    private static final int FILE_HEADER_SIZE = 16;
+
+    private static final int RECORD_MAGIC = 0x4c4f4752; // "LOGR"
+
+    /**
+     * magic, length, sequence and crc.
+     */
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private static final int MAX_PAYLOAD = 64 * 1024;
+
+    private static final String HEADER_PREFIX = "Logged at ";
+
+    private static final String PENDING_SUFFIX = ".pending";
+
+    /**
+     * Held while pending files are recovered, so two runs never append the same one.
+     */
+    private static final Object RECOVERY_LOCK = new Object();
+
+    private static final ConcurrentHashMap<String, MappedLogBuffer> BUFFERS = new ConcurrentHashMap<String, MappedLogBuffer>();
+
+    private final MappedByteBuffer map;
+
+    private final int capacity;
+
+    /**
+     * Sequence and length followed by the payload, as covered by the CRC.
+     */
+    private final ByteBuffer scratch;
+
+    private final CRC32 crc = new CRC32();
+
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+
+    private final char[] header = new char[HEADER_PREFIX.length() + TimestampFormatter.DATE_TIME_LENGTH];
+
+    private long sequence;
+
+    private MappedLogBuffer(MappedByteBuffer map) {
+        this.map = map;
+        capacity = map.capacity();
+        scratch = ByteBuffer.allocate(12 + Math.min(MAX_PAYLOAD, (capacity - FILE_HEADER_SIZE) / 4));
+        HEADER_PREFIX.getChars(0, HEADER_PREFIX.length(), header, 0);
+    }
+
+    /**
+     * @return the buffer for {@code name}, mapping it and recovering the previous
+     * run's records on first use, or null if it cannot be mapped.
+     */
+    static MappedLogBuffer get(Context context, String name, int size) {
+        MappedLogBuffer buffer = BUFFERS.get(name);
+        if (buffer != null) return buffer;
+
+        synchronized (BUFFERS) {
+            buffer = BUFFERS.get(name);
+            if (buffer != null) return buffer;
+
+            final File directory = new File(context.getFilesDir(), "log");
+            directory.mkdirs();
+            try {
+                final String base = ProcessName.fileName(context, name);
+                buffer = open(new File(directory, base + ".mmap"), new File(directory, base + ".recovered"), size);
+            } catch (IOException e) {
+                if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to map log buffer " + name, e);
+                return null;
+            }
+            BUFFERS.put(name, buffer);
+            return buffer;
+        }
+    }
+
+    /**
+     * Maps a new buffer in {@code file}, leaving the previous run's records to be
+     * recovered into {@code recovered} on the "Log-init" thread.
+     */
+    static MappedLogBuffer open(final File file, final File recovered, int size) throws IOException {
+        if (file.length() >= FILE_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            long time = System.currentTimeMillis();
+            File pending = new File(file.getPath() + PENDING_SUFFIX + time);
+            while (pending.exists()) pending = new File(file.getPath() + PENDING_SUFFIX + ++time);
+            if (!file.renameTo(pending)) throw new IOException("Unable to rename " + file);
+        }
+        if (pendingFiles(file).length > 0) {
+            Log.runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    recoverPending(file, recovered);
+                }
+            });
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Truncating first leaves a sparse file of zeros, with nothing to recover.
+            final int mapSize = Math.max(size, 4096);
+            raf.setLength(0);
+            raf.setLength(mapSize);
+            final MappedLogBuffer buffer = new MappedLogBuffer(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapSize));
+            buffer.map.putInt(0, FILE_MAGIC);
+            buffer.map.putInt(4, VERSION);
+            buffer.map.position(FILE_HEADER_SIZE);
+            return buffer;
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends the records of every pending file of {@code file} to
+     * {@code recovered}, oldest file first, and deletes the pending files.
+     */
+    static void recoverPending(File file, File recovered) {
+        synchronized (RECOVERY_LOCK) {
+            for (File pending : pendingFiles(file)) {
+                try {
+                    final RandomAccessFile raf = new RandomAccessFile(pending, "r");
+                    try {
+                        final MappedLogBuffer previous = new MappedLogBuffer(
+                                raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+                        if (previous.map.getInt(0) == FILE_MAGIC) previous.recover(recovered);
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to recover " + pending, e);
+                }
+                pending.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the pending files of {@code file}, oldest first.
+     */
+    private static File[] pendingFiles(File file) {
+        final String prefix = file.getName() + PENDING_SUFFIX;
+        final File[] pending = file.getAbsoluteFile().getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File candidate) {
+                return candidate.getName().startsWith(prefix) && pendingTime(candidate, prefix) >= 0;
+            }
+        });
+        if (pending == null) return new File[0];
+        Arrays.sort(pending, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long x = pendingTime(a, prefix);
+                final long y = pendingTime(b, prefix);
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        return pending;
+    }
+
+    private static long pendingTime(File pending, String prefix) {
+        try {
+            return Long.parseLong(pending.getName().substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return number of payload bytes copied into the mapping.
+     */
+    synchronized int append(long time, String type, String tag, String msg) {
+        scratch.clear();
+        scratch.position(12);
+        final int length = timestamps.formatDateTime(time, header, HEADER_PREFIX.length());
+        for (int i = 0; i < length; i++) {
+            scratch.put((byte) header[i]);
+        }
+        scratch.put((byte) '\n');
+        Utf8.putTruncated(scratch, type);
+        if (scratch.hasRemaining()) scratch.put((byte) '@');
+        Utf8.putTruncated(scratch, tag == null ? "null" : tag);
+        if (scratch.hasRemaining()) scratch.put((byte) '\t');
+        Utf8.putTruncated(scratch, msg == null ? "null" : msg);
+        if (scratch.hasRemaining()) scratch.put((byte) '\n');
+
+        final int payload = scratch.position() - 12;
+        final long seq = sequence++;
+        scratch.putLong(0, seq);
+        scratch.putInt(8, payload);
+        crc.reset();
+        crc.update(scratch.array(), 0, 12 + payload);
+
+        final int recordSize = align(RECORD_HEADER_SIZE + payload);
+        int position = map.position();
+        if (position + recordSize > capacity) {
+            if (capacity - position >= 4) map.putInt(position, 0);
+            position = FILE_HEADER_SIZE;
+        }
+        map.position(position + RECORD_HEADER_SIZE);
+        map.put(scratch.array(), 12, payload);
+        map.putInt(position + 4, payload);
+        map.putLong(position + 8, seq);
+        map.putInt(position + 16, (int) crc.getValue());
+        map.putInt(position, RECORD_MAGIC);
+        map.position(position + recordSize);
+        return payload;
+    }
+
+    private void recover(File recovered) {
+        final List<long[]> records = new ArrayList<long[]>();
+        final byte[] bytes = new byte[12 + MAX_PAYLOAD];
+        int position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            final int length = map.getInt(position + 4);
+            if (map.getInt(position) == RECORD_MAGIC && length >= 0 && length <= MAX_PAYLOAD
+                    && position + RECORD_HEADER_SIZE + length <= capacity
+                    && checksum(position, length, bytes) == map.getInt(position + 16)) {
+                records.add(new long[]{map.getLong(position + 8), position, length});
+                position += align(RECORD_HEADER_SIZE + length);
+            } else {
+                position += 4;
+            }
+        }
+        if (records.isEmpty()) return;
+
+        Collections.sort(records, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+            }
+        });
+
+        final long maxSize = Log.getConfig().getMaxFileSize();
+        if (maxSize > 0 && recovered.length() >= maxSize) {
+            final File segment = LogArchiver.archiveFile(recovered, System.currentTimeMillis());
+            if (recovered.renameTo(segment)) LogArchiver.rolled(recovered, segment);
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(recovered, true);
+            for (long[] record : records) {
+                final int length = (int) record[2];
+                map.position((int) record[1] + RECORD_HEADER_SIZE);
+                map.get(bytes, 0, length);
+                out.write(bytes, 0, length);
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to write " + recovered, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private int checksum(int position, int length, byte[] bytes) {
+        map.position(position + 8);
+        map.get(bytes, 0, 8);
+        map.position(position + RECORD_HEADER_SIZE);
+        map.get(bytes, 12, length);
+        bytes[8] = (byte) (length >>> 24);
+        bytes[9] = (byte) (length >>> 16);
+        bytes[10] = (byte) (length >>> 8);
+        bytes[11] = (byte) length;
+        crc.reset();
+        crc.update(bytes, 0, 12 + length);
+        return (int) crc.getValue();
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+}
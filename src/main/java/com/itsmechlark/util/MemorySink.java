@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last events of every level in a preallocated ring, unformatted.
+ * Appending copies the event's fields into the next slot; messages, arguments
+ * and stack traces are only turned into text by {@link #dump(Writer)}, so the
+ * ring can take VERBOSE events while logcat and the file stay at WARN.
+ * <p/>
+ * Writers claim slots from an atomic counter and only lock the slot they copy
+ * into, so they rarely meet; a dump locks each slot just long enough to copy it.
+ */
+final class MemorySink extends Sink {
+
+    private static final String HEADER_PREFIX = "Logged at ";
+
+    private final LogEvent[] slots;
+
+    private final long[] sequences;
+
+    private final int mask;
+
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    MemorySink(int capacity) {
+        super(Log.VERBOSE);
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        slots = new LogEvent[size];
+        sequences = new long[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new LogEvent();
+            sequences[i] = -1;
+        }
+        mask = size - 1;
+    }
+
+    int getCapacity() {
+        return slots.length;
+    }
+
+    @Override
+    public int append(LogEvent event, String formatted) {
+        final long sequence = next.getAndIncrement();
+        final int index = (int) sequence & mask;
+        final LogEvent slot = slots[index];
+        synchronized (slot) {
+            if (sequences[index] < sequence) {
+                slot.copyFrom(event);
+                sequences[index] = sequence;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the buffered events, oldest first, as text records like the log file's.
+     * Events logged while dumping may be skipped.
+     *
+     * @return number of events written.
+     */
+    int dump(Writer out) throws IOException {
+        final long end = next.get();
+        final LogEvent event = new LogEvent();
+        final TimestampFormatter timestamps = new TimestampFormatter();
+        final char[] header = new char[HEADER_PREFIX.length() + TimestampFormatter.DATE_TIME_LENGTH];
+        HEADER_PREFIX.getChars(0, HEADER_PREFIX.length(), header, 0);
+
+        int written = 0;
+        for (long sequence = Math.max(0, end - slots.length); sequence < end; sequence++) {
+            final int index = (int) sequence & mask;
+            final LogEvent slot = slots[index];
+            synchronized (slot) {
+                if (sequences[index] != sequence) continue;
+                event.copyFrom(slot);
+            }
+            out.write(header, 0, timestamps.formatDateTime(event.getTimeMillis(), header, HEADER_PREFIX.length()));
+            out.write('\n');
+            out.write(Log.logLevelToString(event.getPriority()));
+            out.write('@');
+            out.write(String.valueOf(event.getScope()));
+            out.write('\t');
+            out.write(String.valueOf(event.getMessage()));
+            out.write('\n');
+            written++;
+        }
+        event.clear();
+        return written;
+    }
+
+    @Override
+    public String toString() {
+        return "memory";
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * Holds the file sink's events until {@link Log#getInstance} has named the log
+ * and the "Log-init" thread has opened it, then writes them ahead of everything
+ * logged later. Bounded: beyond {@link #CAPACITY} events the oldest are dropped,
+ * and a record saying how many is written in their place.
+ * <p/>
+ * Events are only held for {@link #WINDOW_MILLIS} after startup. Past that the
+ * buffer stops taking events and is replayed by the next file sink call, or
+ * discarded if the log was never named, so an app that does not log to a file
+ * stops paying for it.
+ * <p/>
+ * Only offering and replaying lock; once replayed, {@link #isOpen()} is a single
+ * volatile read on the way to the file.
+ */
+final class PreInitBuffer {
+
+    static final int CAPACITY = 256;
+
+    static final long WINDOW_MILLIS = 10 * 1000;
+
+    private final long deadline = System.currentTimeMillis() + WINDOW_MILLIS;
+
+    private final LogEvent[] events = new LogEvent[CAPACITY];
+
+    private int head;
+
+    private int size;
+
+    private long dropped;
+
+    private volatile boolean open = true;
+
+    boolean isOpen() {
+        return open;
+    }
+
+    boolean isExpired() {
+        return System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * Copies {@code event} into the buffer, formatting its message first so
+     * arguments changed after the call do not change the record.
+     *
+     * @return false once the buffer was replayed or its window has passed; the
+     * caller replays it, then writes the event itself.
+     */
+    synchronized boolean offer(LogEvent event) {
+        if (!open || isExpired()) return false;
+        event.getMessage();
+        final int index;
+        if (size == CAPACITY) {
+            index = head;
+            head = (head + 1) % CAPACITY;
+            dropped++;
+        } else {
+            index = (head + size) % CAPACITY;
+            size++;
+        }
+        LogEvent copy = events[index];
+        if (copy == null) {
+            copy = new LogEvent();
+            events[index] = copy;
+        }
+        copy.copyFrom(event);
+        return true;
+    }
+
+    /**
+     * Writes the buffered events to {@code appender}, or discards them if it could
+     * not be opened, and lets later events through.
+     */
+    synchronized void replay(FileAppender appender) {
+        if (!open) return;
+        if (appender != null && dropped > 0) {
+            final LogEvent summary = new LogEvent();
+            summary.set(null, Log.WARN, null, "Log", null,
+                    dropped + " events logged before initialization were dropped", null);
+            if (size > 0) summary.timeMillis = events[head].timeMillis;
+            appender.append(summary);
+        }
+        for (int i = 0; i < size; i++) {
+            final LogEvent event = events[(head + i) % CAPACITY];
+            if (appender != null) appender.append(event);
+            event.clear();
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            events[i] = null;
+        }
+        head = 0;
+        size = 0;
+        dropped = 0;
+        open = false;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import android.content.Context;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Names the files of the current process apart from those of the app's other
+ * processes, e.g. a {@code :remote} service. The name is read once from
+ * {@code /proc/self/cmdline}, which every Android version has.
+ */
+final class ProcessName {
+
+    private static volatile String suffix;
+
+    private ProcessName() {
+    }
+
+    /**
+     * @return {@code name} in the app's main process, otherwise
+     * {@code <name>-<process>}, e.g. "app.log-remote".
+     */
+    static String fileName(Context context, String name) {
+        final String process = suffix(context);
+        return process.length() == 0 ? name : name + "-" + process;
+    }
+
+    /**
+     * @return "" in the main process, else the part of the process name after the
+     * package's ':' (or the whole name), with anything but letters, digits and
+     * '_' replaced by '_'.
+     */
+    static String suffix(Context context) {
+        String current = suffix;
+        if (current != null) return current;
+
+        final String process = read();
+        final String packageName = context.getPackageName();
+        if (process == null || process.length() == 0 || process.equals(packageName)) {
+            current = "";
+        } else {
+            final String name = packageName != null && process.startsWith(packageName + ":")
+                    ? process.substring(packageName.length() + 1) : process;
+            final StringBuilder out = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                out.append(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' ? c : '_');
+            }
+            current = out.toString();
+        }
+        suffix = current;
+        return current;
+    }
+
+    private static String read() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/cmdline");
+            final byte[] bytes = new byte[256];
+            int length = 0;
+            for (int n; length < bytes.length && (n = in.read(bytes, length, bytes.length - length)) > 0; ) {
+                length += n;
+            }
+            int end = 0;
+            while (end < length && bytes[end] != 0) end++;
+            return new String(bytes, 0, end, "UTF-8").trim();
+        } catch (IOException e) {
+            if (Log.DEBUGGING) android.util.Log.e("Log", "Unable to read the process name", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * A destination for log events, registered with {@link Log#addSink(Sink)}. Every
+ * event at or above the sink's level is passed to {@link #append(LogEvent, String)},
+ * after the sink's {@link LogFormatter}, if any, has rendered it.
+ * <p/>
+ * Sinks are called on the logging thread, or on the "Log-writer" thread in async
+ * mode, and must be thread-safe. The event is reused once {@code append}
+ * returns, so copy anything that has to be kept.
+ */
+public abstract class Sink {
+
+    private final LogFormatter formatter;
+
+    private volatile int level;
+
+    /**
+     * Sum of {@link #append(LogEvent, String)} results, for {@link Log#getMetrics()};
+     * null until the sink writes with metrics on.
+     */
+    volatile StripedCounters bytesWritten;
+
+    protected Sink(int level) {
+        this(level, null);
+    }
+
+    protected Sink(int level, LogFormatter formatter) {
+        this.level = level;
+        this.formatter = formatter;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the minimum priority this sink receives; log calls below the level of
+     * every sink return without capturing anything.
+     */
+    public void setLevel(int level) {
+        this.level = level;
+        Log.updateEnabledLevel();
+    }
+
+    /**
+     * @return the level {@code event} has to meet to reach this sink.
+     */
+    int levelFor(LogEvent event) {
+        return level;
+    }
+
+    /**
+     * @return formatter applied before {@link #append(LogEvent, String)}, or null
+     * if the sink reads the event itself.
+     */
+    public LogFormatter getFormatter() {
+        return formatter;
+    }
+
+    /**
+     * @param formatted the event as rendered by {@link #getFormatter()}, or null
+     *                  without a formatter.
+     * @return number of bytes written, if known.
+     */
+    public abstract int append(LogEvent event, String formatted);
+
+    /**
+     * Writes out anything buffered; called by {@link Log#flush()}.
+     */
+    public void flush() {
+    }
+}
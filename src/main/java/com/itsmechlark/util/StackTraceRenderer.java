@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders the stack trace attached to a log event, in the format of
+ * {@link Throwable#printStackTrace()}: frames a cause shares with the exception
+ * it caused are collapsed into "... N more". Frames per exception and causes per
+ * chain can be limited with {@link Log.Config#setMaxStackFrames(int)} and
+ * {@link Log.Config#setMaxCauses(int)}.
+ * <p/>
+ * Rendered traces are cached by fingerprint, the type, message and frames of
+ * every exception in the chain, so an exception thrown again and again from the
+ * same place is only rendered once. Like {@link android.util.Log#getStackTraceString(Throwable)},
+ * chains containing an {@link UnknownHostException} render as an empty string.
+ */
+final class StackTraceRenderer {
+
+    private static final int MAX_CACHED_TRACES = 64;
+
+    private static final ConcurrentHashMap<Fingerprint, String> TRACES = new ConcurrentHashMap<Fingerprint, String>();
+
+    private StackTraceRenderer() {
+    }
+
+    static String render(Throwable tr) {
+        if (tr == null) return "";
+
+        final Log.Config config = Log.getConfig();
+        final int maxFrames = config.getMaxStackFrames();
+        final int maxCauses = config.getMaxCauses();
+
+        final List<Throwable> chain = new ArrayList<Throwable>(4);
+        final List<Object> parts = new ArrayList<Object>(8);
+        parts.add(maxFrames);
+        parts.add(maxCauses);
+        Throwable circular = null;
+        for (Throwable t = tr; t != null; t = t.getCause()) {
+            if (contains(chain, t)) {
+                circular = t;
+                parts.add(chain.indexOf(t));
+                break;
+            }
+            if (t instanceof UnknownHostException) return "";
+            chain.add(t);
+            parts.add(t.getClass());
+            parts.add(t.getMessage());
+            parts.add(t.getStackTrace());
+        }
+
+        final Fingerprint fingerprint = new Fingerprint(parts.toArray());
+        String trace = TRACES.get(fingerprint);
+        if (trace == null) {
+            trace = render(chain, circular, maxFrames, maxCauses);
+            if (TRACES.size() >= MAX_CACHED_TRACES) TRACES.clear();
+            TRACES.put(fingerprint, trace);
+        }
+        return trace;
+    }
+
+    private static String render(List<Throwable> chain, Throwable circular, int maxFrames, int maxCauses) {
+        final StringBuilder out = new StringBuilder(1024);
+        StackTraceElement[] enclosing = null;
+        for (int i = 0; i < chain.size(); i++) {
+            final Throwable t = chain.get(i);
+            if (i > 0) {
+                if (maxCauses > 0 && i > maxCauses) {
+                    out.append("\t... ").append(chain.size() - i).append(" more causes\n");
+                    break;
+                }
+                out.append("Caused by: ");
+            }
+            out.append(t).append('\n');
+
+            final StackTraceElement[] frames = t.getStackTrace();
+            int shared = 0;
+            if (enclosing != null) {
+                while (shared < frames.length && shared < enclosing.length
+                        && frames[frames.length - 1 - shared].equals(enclosing[enclosing.length - 1 - shared])) {
+                    shared++;
+                }
+            }
+            final int unique = frames.length - shared;
+            final int shown = maxFrames > 0 ? Math.min(unique, maxFrames) : unique;
+            for (int f = 0; f < shown; f++) {
+                out.append("\tat ").append(frames[f]).append('\n');
+            }
+            if (shown < unique) out.append("\t... ").append(unique - shown).append(" frames omitted\n");
+            if (shared > 0) out.append("\t... ").append(shared).append(" more\n");
+            enclosing = frames;
+            if (i == chain.size() - 1 && circular != null) {
+                out.append("\t[CIRCULAR REFERENCE: ").append(circular).append("]\n");
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean contains(List<Throwable> chain, Throwable t) {
+        for (int i = 0; i < chain.size(); i++) {
+            if (chain.get(i) == t) return true;
+        }
+        return false;
+    }
+
+    private static final class Fingerprint {
+        private final Object[] parts;
+
+        private final int hash;
+
+        Fingerprint(Object[] parts) {
+            this.parts = parts;
+            hash = Arrays.deepHashCode(parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fingerprint && hash == ((Fingerprint) o).hash
+                    && Arrays.deepEquals(parts, ((Fingerprint) o).parts);
+        }
+    }
+}
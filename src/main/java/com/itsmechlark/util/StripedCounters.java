@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A group of counters spread over per-thread stripes, in the spirit of
+ * {@code LongAdder} which is not available here. A thread always adds to the
+ * stripe picked by its id, and each stripe's counters sit on their own cache
+ * lines, so threads logging at the same time rarely touch the same line. Sums
+ * are read by adding up the stripes and are not atomic snapshots.
+ */
+final class StripedCounters {
+
+    /**
+     * Longs per 64 byte cache line.
+     */
+    private static final int LINE = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells;
+
+    private final int stride;
+
+    StripedCounters(int counters) {
+        // A spare line keeps stripes apart even if the array is not line aligned.
+        stride = (counters + LINE - 1) / LINE * LINE + LINE;
+        cells = new AtomicLongArray(STRIPES * stride);
+    }
+
+    private static int stripes() {
+        final int wanted = Math.min(2 * Runtime.getRuntime().availableProcessors(), 64);
+        int stripes = 1;
+        while (stripes < wanted) stripes <<= 1;
+        return stripes;
+    }
+
+    void add(int counter, long delta) {
+        final long id = Thread.currentThread().getId();
+        final int stripe = (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1);
+        cells.getAndAdd(stripe * stride + counter, delta);
+    }
+
+    long sum(int counter) {
+        long sum = 0;
+        for (int i = counter; i < cells.length(); i += stride) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
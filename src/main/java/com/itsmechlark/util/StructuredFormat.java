@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+/**
+ * One-line JSON and logfmt encodings of a log record, shared by
+ * {@link FileAppender} for {@link Log#FORMAT_JSON} and {@link Log#FORMAT_LOGFMT},
+ * by {@link LogFormatter#JSON} and {@link LogFormatter#LOGFMT}, and by
+ * {@link LogDecoder}. Both start with the same keys:
+ * <pre>
+ * {"time":1382106725123,"level":"INFO","tag":"APP","msg":"login","user":"bob","latencyMs":12}
+ * time=1382106725123 level=INFO tag=APP msg=login user=bob latencyMs=12
+ * </pre>
+ * followed by an "error" key holding the stack trace, if any; "msg" is left out
+ * for events logged without a message. Everything is
+ * appended to a caller-owned builder.
+ */
+final class StructuredFormat {
+
+    private StructuredFormat() {
+    }
+
+    static StringBuilder appendJson(StringBuilder out, long time, String level, String tag, String msg, KeyValues fields, String error) {
+        out.append("{\"time\":").append(time).append(",\"level\":");
+        appendJsonString(out, level);
+        out.append(",\"tag\":");
+        appendJsonString(out, tag);
+        if (msg != null) {
+            out.append(",\"msg\":");
+            appendJsonString(out, msg);
+        }
+        if (fields != null) {
+            for (int i = 0; i < fields.size(); i++) {
+                out.append(',');
+                appendJsonString(out, fields.key(i));
+                out.append(':');
+                appendJsonValue(out, fields, i);
+            }
+        }
+        if (error != null) {
+            out.append(",\"error\":");
+            appendJsonString(out, error);
+        }
+        return out.append('}');
+    }
+
+    static StringBuilder appendLogfmt(StringBuilder out, long time, String level, String tag, String msg, KeyValues fields, String error) {
+        out.append("time=").append(time).append(" level=");
+        appendLogfmtValue(out, level);
+        out.append(" tag=");
+        appendLogfmtValue(out, tag);
+        if (msg != null) {
+            out.append(" msg=");
+            appendLogfmtValue(out, msg);
+        }
+        if (fields != null) appendLogfmtFields(out, fields);
+        if (error != null) {
+            out.append(" error=");
+            appendLogfmtValue(out, error);
+        }
+        return out;
+    }
+
+    /**
+     * Appends " key=value" for each field.
+     */
+    static StringBuilder appendLogfmtFields(StringBuilder out, KeyValues fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            out.append(' ').append(fields.key(i)).append('=');
+            switch (fields.type(i)) {
+                case KeyValues.LONG:
+                    out.append(fields.longValue(i));
+                    break;
+                case KeyValues.DOUBLE:
+                    out.append(fields.doubleValue(i));
+                    break;
+                case KeyValues.BOOLEAN:
+                    out.append(fields.longValue(i) != 0);
+                    break;
+                default:
+                    appendLogfmtValue(out, String.valueOf(fields.value(i)));
+            }
+        }
+        return out;
+    }
+
+    private static void appendJsonValue(StringBuilder out, KeyValues fields, int index) {
+        switch (fields.type(index)) {
+            case KeyValues.LONG:
+                out.append(fields.longValue(index));
+                break;
+            case KeyValues.DOUBLE:
+                final double value = fields.doubleValue(index);
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    out.append('"').append(value).append('"');
+                } else {
+                    out.append(value);
+                }
+                break;
+            case KeyValues.BOOLEAN:
+                out.append(fields.longValue(index) != 0);
+                break;
+            default:
+                final Object object = fields.value(index);
+                appendJsonString(out, object == null ? null : object.toString());
+        }
+    }
+
+    static void appendJsonString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Appends {@code value} bare, or quoted and escaped if it is empty or has
+     * spaces, '=', quotes or control characters.
+     */
+    static void appendLogfmtValue(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        boolean quote = value.length() == 0;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c <= ' ' || c == '=' || c == '"' || c == '\\';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
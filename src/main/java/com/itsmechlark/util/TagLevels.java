@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-tag overrides of {@link Log.Config#getLoggingLevel()}. A rule is either an
+ * exact tag or a prefix written as "Net*"; an exact tag wins over a prefix and a
+ * longer prefix over a shorter one, so "*" sets the default.
+ * <p/>
+ * Rules are matched once per tag and the result cached. Each change publishes a
+ * new immutable {@link Snapshot} with an empty cache, so lookups never lock and
+ * never see a result computed from older rules. Without rules a lookup is a
+ * single volatile read.
+ */
+final class TagLevels {
+
+    /**
+     * Returned by {@link #resolve(String)} for tags without a rule.
+     */
+    static final int NONE = -1;
+
+    private static final int MAX_CACHED_TAGS = 1024;
+
+    private final Map<String, Integer> rules = new HashMap<String, Integer>();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * @return the level of the best rule for {@code tag}, or {@link #NONE}.
+     */
+    int resolve(String tag) {
+        final Snapshot current = snapshot;
+        if (current == null) return NONE;
+        return current.resolve(tag == null ? "" : tag);
+    }
+
+    synchronized void set(String pattern, int level) {
+        rules.put(pattern, level);
+        snapshot = new Snapshot(rules);
+    }
+
+    synchronized void remove(String pattern) {
+        if (rules.remove(pattern) == null) return;
+        snapshot = rules.isEmpty() ? null : new Snapshot(rules);
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String, Integer> exact = new HashMap<String, Integer>();
+
+        private final String[] prefixes;
+
+        private final int[] prefixLevels;
+
+        private final ConcurrentHashMap<String, Integer> cache = new ConcurrentHashMap<String, Integer>();
+
+        Snapshot(Map<String, Integer> rules) {
+            final Map<String, Integer> prefixRules = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> rule : rules.entrySet()) {
+                final String pattern = rule.getKey();
+                if (pattern.endsWith("*")) {
+                    prefixRules.put(pattern.substring(0, pattern.length() - 1), rule.getValue());
+                } else {
+                    exact.put(pattern, rule.getValue());
+                }
+            }
+            prefixes = prefixRules.keySet().toArray(new String[prefixRules.size()]);
+            Arrays.sort(prefixes, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return b.length() - a.length();
+                }
+            });
+            prefixLevels = new int[prefixes.length];
+            for (int i = 0; i < prefixes.length; i++) {
+                prefixLevels[i] = prefixRules.get(prefixes[i]);
+            }
+        }
+
+        int resolve(String tag) {
+            Integer level = cache.get(tag);
+            if (level == null) {
+                level = match(tag);
+                if (cache.size() >= MAX_CACHED_TAGS) cache.clear();
+                cache.put(tag, level);
+            }
+            return level;
+        }
+
+        private int match(String tag) {
+            final Integer level = exact.get(tag);
+            if (level != null) return level;
+            for (int i = 0; i < prefixes.length; i++) {
+                if (tag.startsWith(prefixes[i])) return prefixLevels[i];
+            }
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.util.Calendar;
+
+/**
+ * Formats log timestamps in the default time zone without allocating. The
+ * "HH:mm:ss" and "MM-dd-yyyy" digits are cached and only recomputed through
+ * {@link Calendar} when the second changes; milliseconds are written per call.
+ * <p/>
+ * Not thread-safe: file appenders own one each and {@link #local()} hands out
+ * one per thread for logcat.
+ */
+final class TimestampFormatter {
+
+    private static final ThreadLocal<TimestampFormatter> LOCAL = new ThreadLocal<TimestampFormatter>() {
+        @Override
+        protected TimestampFormatter initialValue() {
+            return new TimestampFormatter();
+        }
+    };
+
+    /**
+     * Length of "HH:mm:ss.SSS".
+     */
+    static final int TIME_LENGTH = 12;
+
+    /**
+     * Length of "HH:mm:ss MM-dd-yyyy".
+     */
+    static final int DATE_TIME_LENGTH = 19;
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    /**
+     * "HH:mm:ss.SSS MM-dd-yyyy"; the millisecond digits are only valid for the
+     * last formatted instant.
+     */
+    private final char[] digits = "00:00:00.000 00-00-0000".toCharArray();
+
+    private final StringBuilder builder = new StringBuilder(128);
+
+    private long cachedSecond = Long.MIN_VALUE;
+
+    static TimestampFormatter local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * @return a cleared builder owned by this formatter, for assembling a line.
+     */
+    StringBuilder builder() {
+        builder.setLength(0);
+        return builder;
+    }
+
+    /**
+     * Appends "HH:mm:ss.SSS".
+     */
+    StringBuilder appendTime(StringBuilder out, long millis) {
+        update(millis);
+        return out.append(digits, 0, TIME_LENGTH);
+    }
+
+    /**
+     * Writes "HH:mm:ss MM-dd-yyyy" into {@code out} at {@code offset}.
+     *
+     * @return the offset after the last written char.
+     */
+    int formatDateTime(long millis, char[] out, int offset) {
+        update(millis);
+        System.arraycopy(digits, 0, out, offset, 8);
+        out[offset + 8] = ' ';
+        System.arraycopy(digits, 13, out, offset + 9, 10);
+        return offset + DATE_TIME_LENGTH;
+    }
+
+    private void update(long millis) {
+        final long second = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+        if (second != cachedSecond) {
+            calendar.setTimeInMillis(millis);
+            put2(0, calendar.get(Calendar.HOUR_OF_DAY));
+            put2(3, calendar.get(Calendar.MINUTE));
+            put2(6, calendar.get(Calendar.SECOND));
+            put2(13, calendar.get(Calendar.MONTH) + 1);
+            put2(16, calendar.get(Calendar.DAY_OF_MONTH));
+            final int year = calendar.get(Calendar.YEAR);
+            put2(19, year / 100);
+            put2(21, year % 100);
+            cachedSecond = second;
+        }
+        final int ms = (int) (millis - second * 1000);
+        digits[9] = (char) ('0' + ms / 100);
+        digits[10] = (char) ('0' + ms / 10 % 10);
+        digits[11] = (char) ('0' + ms % 10);
+    }
+
+    private void put2(int index, int value) {
+        digits[index] = (char) ('0' + value / 10 % 10);
+        digits[index + 1] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * UTF-8 encoding straight into a {@link ByteBuffer}, without the intermediate
+ * arrays of {@link String#getBytes(String)} or a CharsetEncoder.
+ */
+final class Utf8 {
+
+    /**
+     * Longest UTF-8 encoding of one UTF-16 code unit or surrogate pair.
+     */
+    static final int MAX_CHAR_BYTES = 4;
+
+    private Utf8() {
+    }
+
+    /**
+     * @return the number of bytes {@link #put} writes for {@code chars}.
+     */
+    static int length(CharSequence chars) {
+        final int length = chars.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = chars.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes one char, or a surrogate pair when {@code low} is non-zero. Unpaired
+     * surrogates are written as '?'. The caller makes sure {@link #MAX_CHAR_BYTES}
+     * are left in {@code out}.
+     */
+    static void put(ByteBuffer out, char c, int low) {
+        if (c < 0x80) {
+            out.put((byte) c);
+        } else if (c < 0x800) {
+            out.put((byte) (0xc0 | c >> 6));
+            out.put((byte) (0x80 | c & 0x3f));
+        } else if (low != 0) {
+            final int cp = Character.toCodePoint(c, (char) low);
+            out.put((byte) (0xf0 | cp >> 18));
+            out.put((byte) (0x80 | cp >> 12 & 0x3f));
+            out.put((byte) (0x80 | cp >> 6 & 0x3f));
+            out.put((byte) (0x80 | cp & 0x3f));
+        } else if (isSurrogate(c)) {
+            out.put((byte) '?');
+        } else {
+            out.put((byte) (0xe0 | c >> 12));
+            out.put((byte) (0x80 | c >> 6 & 0x3f));
+            out.put((byte) (0x80 | c & 0x3f));
+        }
+    }
+
+    /**
+     * Encodes as much of {@code chars} as fits in {@code out}, never splitting a
+     * character.
+     *
+     * @return false if {@code chars} was cut short.
+     */
+    static boolean putTruncated(ByteBuffer out, CharSequence chars) {
+        final int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            if (out.remaining() < MAX_CHAR_BYTES) return false;
+            final char c = chars.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                put(out, c, chars.charAt(++i));
+            } else {
+                put(out, c, 0);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+}
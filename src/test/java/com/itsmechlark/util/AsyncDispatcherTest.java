@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link AsyncDispatcher} directly, with a sink that records what the
+ * writer thread delivers and can hold the writer up to fill the ring.
+ */
+public class AsyncDispatcherTest {
+
+    private static final String TAG = "AsyncDispatcherTest";
+
+    private static final long TIMEOUT_MILLIS = 10 * 1000L;
+
+    private final RecordingSink sink = new RecordingSink();
+
+    private final List<AsyncDispatcher> dispatchers = new ArrayList<AsyncDispatcher>();
+
+    @Before
+    public void setUp() {
+        Log.addSink(sink);
+    }
+
+    @After
+    public void tearDown() {
+        sink.release();
+        for (AsyncDispatcher dispatcher : dispatchers) dispatcher.shutdown(TIMEOUT_MILLIS);
+        Log.removeSink(sink);
+    }
+
+    @Test
+    public void deliversEventsInOrder() {
+        final AsyncDispatcher dispatcher = dispatcher(8, Log.OVERFLOW_BLOCK);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(offer(dispatcher, Log.INFO, "0 " + i) >= 0);
+        }
+
+        assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+        assertEquals(range("0", 0, 1000), sink.messages());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void keepsEachProducersOrderUnderContention() throws InterruptedException {
+        final AsyncDispatcher dispatcher = dispatcher(64, Log.OVERFLOW_BLOCK);
+        final int producers = 4;
+        final int events = 5000;
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < events; i++) offer(dispatcher, Log.INFO, producer + " " + i);
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) thread.join(TIMEOUT_MILLIS);
+
+        assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+        final List<String> messages = sink.messages();
+        assertEquals(producers * events, messages.size());
+        final int[] next = new int[producers];
+        for (String message : messages) {
+            final String[] parts = message.split(" ");
+            final int producer = Integer.parseInt(parts[0]);
+            assertEquals(message, next[producer]++, Integer.parseInt(parts[1]));
+        }
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestEvents() throws InterruptedException {
+        final AsyncDispatcher dispatcher = dispatcher(4, Log.OVERFLOW_DROP_OLDEST);
+        holdWriter(dispatcher);
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(offer(dispatcher, Log.INFO, "0 " + i) >= 0);
+        }
+        sink.release();
+
+        assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+        assertEquals(Arrays.asList("0 0", "0 7", "0 8", "0 9", "0 10"), sink.messages());
+        assertEquals(6, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void dropBelowLevelRejectsOnlyLowPriorityEvents() throws InterruptedException {
+        final AsyncDispatcher dispatcher = dispatcher(4, Log.OVERFLOW_DROP_BELOW_LEVEL);
+        holdWriter(dispatcher);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(offer(dispatcher, Log.INFO, "0 " + i) >= 0);
+        }
+        for (int i = 5; i <= 7; i++) {
+            assertEquals(AsyncDispatcher.DROPPED, offer(dispatcher, Log.INFO, "0 " + i));
+        }
+        assertEquals(3, dispatcher.getDroppedCount());
+
+        // A WARN event waits for room instead.
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                offer(dispatcher, Log.WARN, "0 8");
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        sink.release();
+        producer.join(TIMEOUT_MILLIS);
+
+        assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+        assertEquals(Arrays.asList("0 0", "0 1", "0 2", "0 3", "0 4", "0 8"), sink.messages());
+        assertEquals(3, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void blockWaitsForRoomWithoutDropping() throws InterruptedException {
+        final AsyncDispatcher dispatcher = dispatcher(4, Log.OVERFLOW_BLOCK);
+        holdWriter(dispatcher);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 20; i++) offer(dispatcher, Log.INFO, "0 " + i);
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        assertEquals(4, dispatcher.getDepth());
+        sink.release();
+        producer.join(TIMEOUT_MILLIS);
+
+        assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+        assertEquals(range("0", 0, 21), sink.messages());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void shutdownDeliversEverythingAcceptedFromConcurrentProducers() throws InterruptedException {
+        final AsyncDispatcher dispatcher = dispatcher(16, Log.OVERFLOW_BLOCK);
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(4);
+        final Thread[] threads = new Thread[4];
+        for (int p = 0; p < threads.length; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int i = 0; ; i++) {
+                        if (offer(dispatcher, Log.INFO, producer + " " + i) == AsyncDispatcher.CLOSED) return;
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        Thread.sleep(50);
+
+        dispatcher.shutdown(TIMEOUT_MILLIS);
+        for (Thread thread : threads) thread.join(TIMEOUT_MILLIS);
+
+        assertEquals(AsyncDispatcher.CLOSED, dispatcher.claim(Log.INFO));
+        assertTrue(accepted.get() > 0);
+        assertEquals(accepted.get(), sink.messages().size());
+    }
+
+    private AsyncDispatcher dispatcher(int capacity, int policy) {
+        final AsyncDispatcher dispatcher = new AsyncDispatcher(capacity, policy, Log.WARN);
+        dispatchers.add(dispatcher);
+        return dispatcher;
+    }
+
+    /**
+     * Queues event "0 0" and waits until the writer is held up delivering it.
+     */
+    private void holdWriter(AsyncDispatcher dispatcher) throws InterruptedException {
+        sink.hold();
+        offer(dispatcher, Log.INFO, "0 0");
+        assertTrue(sink.awaitHeld());
+    }
+
+    /**
+     * @return the claimed sequence, or {@link AsyncDispatcher#DROPPED} or
+     * {@link AsyncDispatcher#CLOSED}.
+     */
+    private static long offer(AsyncDispatcher dispatcher, int priority, String msg) {
+        final long seq = dispatcher.claim(priority);
+        if (seq < 0) return seq;
+        dispatcher.slot(seq).set(null, priority, TAG, TAG, null, msg, null);
+        dispatcher.publish(seq);
+        return seq;
+    }
+
+    private static List<String> range(String producer, int from, int to) {
+        final List<String> messages = new ArrayList<String>();
+        for (int i = from; i < to; i++) messages.add(producer + " " + i);
+        return messages;
+    }
+
+    private static final class RecordingSink extends Sink {
+
+        private final List<String> messages = new ArrayList<String>();
+
+        private volatile CountDownLatch gate;
+
+        private volatile CountDownLatch held;
+
+        RecordingSink() {
+            super(Log.VERBOSE);
+        }
+
+        void hold() {
+            held = new CountDownLatch(1);
+            gate = new CountDownLatch(1);
+        }
+
+        boolean awaitHeld() throws InterruptedException {
+            return held.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        void release() {
+            final CountDownLatch current = gate;
+            gate = null;
+            if (current != null) current.countDown();
+        }
+
+        synchronized List<String> messages() {
+            return new ArrayList<String>(messages);
+        }
+
+        @Override
+        public int append(LogEvent event, String formatted) {
+            if (!TAG.equals(event.getTag())) return 0;
+            synchronized (this) {
+                messages.add(event.getMessage());
+            }
+            final CountDownLatch current = gate;
+            if (current != null) {
+                held.countDown();
+                try {
+                    current.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return 0;
+        }
+    }
+}
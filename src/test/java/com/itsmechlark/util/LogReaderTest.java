@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes logs through {@link FileAppender} and reads time ranges back with
+ * {@link LogReader}, from the index and without it.
+ */
+public class LogReaderTest {
+
+    private static final int RECORDS = 2000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Log.Config config = Log.getConfig();
+
+    private long maxFileSize;
+
+    private int maxArchives;
+
+    private boolean compressArchives;
+
+    private int fileFormat;
+
+    /**
+     * Time of the first record; record {@code i} is logged {@code i} seconds later.
+     */
+    private long base;
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        maxFileSize = config.getMaxFileSize();
+        maxArchives = config.getMaxArchives();
+        compressArchives = config.isCompressArchives();
+        fileFormat = config.getFileFormat();
+        config.setMaxArchives(0);
+        config.setCompressArchives(false);
+        config.setFileFormat(Log.FORMAT_TEXT);
+
+        // Noon, so the records stay within one day.
+        final Calendar calendar = Calendar.getInstance();
+        calendar.set(2013, Calendar.MARCH, 1, 12, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        base = calendar.getTimeInMillis();
+    }
+
+    @After
+    public void tearDown() {
+        FileAppender.closeAll();
+        config.setMaxFileSize(maxFileSize);
+        config.setMaxArchives(maxArchives);
+        config.setCompressArchives(compressArchives);
+        config.setFileFormat(fileFormat);
+    }
+
+    @Test
+    public void readsATimeRangeThroughTheIndex() throws IOException {
+        config.setMaxFileSize(0);
+        write();
+
+        assertTrue(LogIndex.read(file).size() > 1);
+        assertEquals(expected(500, 800, Log.VERBOSE), read(500, 800, Log.VERBOSE));
+        assertEquals(expected(0, 10, Log.VERBOSE), read(0, 10, Log.VERBOSE));
+        assertEquals(expected(1990, RECORDS, Log.VERBOSE), read(1990, RECORDS + 10, Log.VERBOSE));
+    }
+
+    @Test
+    public void readsTheSameRangeWithoutTheIndex() throws IOException {
+        config.setMaxFileSize(0);
+        write();
+        final List<String> indexed = read(500, 800, Log.WARN);
+
+        assertTrue(LogIndex.indexFile(file).delete());
+
+        assertEquals(expected(500, 800, Log.WARN), indexed);
+        assertEquals(indexed, read(500, 800, Log.WARN));
+    }
+
+    @Test
+    public void readsATimeRangeAcrossARollover() throws IOException {
+        config.setMaxFileSize(16 * 1024);
+        write();
+
+        final File[] segments = LogReader.segments(file);
+        assertTrue(segments.length > 2);
+        for (File segment : segments) {
+            assertTrue(segment.getName(), LogIndex.indexFile(segment).isFile());
+        }
+        assertEquals(expected(0, RECORDS, Log.VERBOSE), read(0, RECORDS, Log.VERBOSE));
+        assertEquals(expected(200, 1800, Log.VERBOSE), read(200, 1800, Log.VERBOSE));
+        assertEquals(expected(200, 1800, Log.WARN), read(200, 1800, Log.WARN));
+        // Only in the last segment and the log itself.
+        assertEquals(expected(RECORDS - 300, RECORDS, Log.VERBOSE), read(RECORDS - 300, RECORDS, Log.VERBOSE));
+    }
+
+    @Test
+    public void readsNothingOutsideTheLoggedRange() throws IOException {
+        config.setMaxFileSize(16 * 1024);
+        write();
+
+        assertEquals(new ArrayList<String>(), read(-100, 0, Log.VERBOSE));
+        assertEquals(new ArrayList<String>(), read(RECORDS, RECORDS + 100, Log.VERBOSE));
+    }
+
+    /**
+     * Logs {@link #RECORDS} records a second apart, every tenth at WARN, and
+     * closes the file so its index is complete.
+     */
+    private void write() {
+        final File directory = folder.getRoot();
+        final FileAppender appender = FileAppender.get(new Context() {
+            @Override
+            public File getFilesDir() {
+                return directory;
+            }
+
+            @Override
+            public String getPackageName() {
+                return "com.test";
+            }
+
+            @Override
+            public PackageManager getPackageManager() {
+                return null;
+            }
+
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        }, "app.log");
+        for (int i = 0; i < RECORDS; i++) {
+            final int priority = priority(i);
+            appender.append(base + i * 1000L, priority, Log.logLevelToString(priority), "TEST", "record " + i);
+        }
+        FileAppender.closeAll();
+        file = new File(directory, "log/app.log");
+    }
+
+    private static int priority(int record) {
+        return record % 10 == 0 ? Log.WARN : Log.INFO;
+    }
+
+    private List<String> read(int from, int to, int level) throws IOException {
+        final List<String> messages = new ArrayList<String>();
+        new LogReader(file).from(base + from * 1000L).to(base + to * 1000L).level(level).read(new LogDecoder.Handler() {
+            @Override
+            public void record(long timeMillis, int priority, String tag, String msg) {
+                messages.add(msg + " at " + (timeMillis - base) / 1000);
+            }
+        });
+        return messages;
+    }
+
+    private static List<String> expected(int from, int to, int level) {
+        final List<String> messages = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            if (priority(i) >= level) messages.add("record " + i + " at " + i);
+        }
+        return messages;
+    }
+}
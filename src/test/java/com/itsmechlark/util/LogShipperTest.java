@@ -0,0 +1,318 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Ships logs to a collector stand-in on a local {@link HttpServer}.
+ */
+public class LogShipperTest {
+
+    private static final long TIMEOUT_MILLIS = 10 * 1000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Collector collector;
+
+    private HttpServer server;
+
+    private URL endpoint;
+
+    private File file;
+
+    private final List<LogShipper> shippers = new ArrayList<LogShipper>();
+
+    @Before
+    public void setUp() throws IOException {
+        collector = new Collector();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/logs", collector);
+        server.start();
+        endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/logs");
+        file = new File(folder.getRoot(), "app.log");
+    }
+
+    @After
+    public void tearDown() {
+        for (LogShipper shipper : shippers) shipper.stop();
+        server.stop(0);
+    }
+
+    @Test
+    public void shipsWholeLinesInBatches() throws IOException {
+        final byte[] log = lines(0, 400);
+        write(file, log, false);
+
+        assertEquals(log.length, shipper().batchSize(1024).ship());
+
+        final List<Batch> batches = collector.accepted();
+        assertTrue(batches.size() > 1);
+        long offset = 0;
+        for (Batch batch : batches) {
+            assertEquals("app.log", batch.file);
+            assertEquals(offset, batch.offset);
+            assertTrue(batch.data.length <= 1024);
+            assertEquals('\n', batch.data[batch.data.length - 1]);
+            offset += batch.data.length;
+        }
+        assertArrayEquals(log, collector.acceptedData());
+    }
+
+    @Test
+    public void retriesAFailedBatchFromTheSameOffset() throws IOException {
+        final byte[] log = lines(0, 10);
+        write(file, log, false);
+        collector.fail(503, 503);
+        final LogShipper shipper = shipper();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                shipper.ship();
+                fail("expected the 503 to be retried");
+            } catch (IOException expected) {
+            }
+        }
+        assertEquals(log.length, shipper.ship());
+
+        assertEquals(3, collector.requests());
+        assertEquals(1, collector.accepted().size());
+        assertEquals(0, collector.accepted().get(0).offset);
+        assertArrayEquals(log, collector.acceptedData());
+    }
+
+    @Test
+    public void resumesAfterARestartWithoutDuplicates() throws IOException {
+        final byte[] first = lines(0, 50);
+        write(file, first, false);
+        assertEquals(first.length, shipper().ship());
+
+        final byte[] second = lines(50, 100);
+        write(file, second, true);
+        assertEquals(second.length, shipper().ship());
+
+        assertEquals(first.length, collector.accepted().get(1).offset);
+        assertArrayEquals(concat(first, second), collector.acceptedData());
+    }
+
+    @Test
+    public void backsOffBetweenFailedUploads() throws Exception {
+        final byte[] log = lines(0, 10);
+        write(file, log, false);
+        collector.fail(503, 503, 503);
+
+        shipper().backoff(40, 160).pollInterval(10).start();
+        awaitData(log);
+
+        final List<Long> times = collector.requestTimes();
+        assertEquals(4, times.size());
+        // Jitter keeps at least half of each doubled backoff: 20, 40 and 80 ms.
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue("attempt " + i + " came too soon", times.get(i) - times.get(i - 1) >= 20L << (i - 1));
+        }
+    }
+
+    @Test
+    public void keepsShippingAfterARuntimeException() throws Exception {
+        final byte[] log = lines(0, 10);
+        write(file, log, false);
+        final int[] calls = new int[1];
+        final LogShipper shipper = shipper().backoff(10, 10).pollInterval(10).constraint(new LogShipper.Constraint() {
+            @Override
+            public boolean isConstrained() {
+                if (calls[0]++ == 0) throw new IllegalStateException("broken constraint");
+                return false;
+            }
+        });
+
+        shipper.start();
+        awaitData(log);
+    }
+
+    @Test
+    public void deletesASegmentOnlyOnceItIsAcknowledged() throws IOException {
+        final File segment = LogArchiver.archiveFile(file, System.currentTimeMillis() - 60 * 1000L);
+        final byte[] rolled = lines(0, 20);
+        write(segment, rolled, false);
+        final byte[] log = lines(20, 30);
+        write(file, log, false);
+        collector.fail(503);
+        final LogShipper shipper = shipper().deleteShipped(true);
+
+        try {
+            shipper.ship();
+            fail("expected the 503 to be retried");
+        } catch (IOException expected) {
+        }
+        assertTrue(segment.exists());
+
+        assertEquals(rolled.length + log.length, shipper.ship());
+        assertFalse(segment.exists());
+        assertTrue(file.exists());
+        assertArrayEquals(concat(rolled, log), collector.acceptedData());
+    }
+
+    @Test
+    public void keepsShippedSegmentsByDefault() throws IOException {
+        final File segment = LogArchiver.archiveFile(file, System.currentTimeMillis() - 60 * 1000L);
+        write(segment, lines(0, 20), false);
+        write(file, lines(20, 30), false);
+
+        shipper().ship();
+
+        assertTrue(segment.exists());
+    }
+
+    private LogShipper shipper() {
+        final LogShipper shipper = new LogShipper(file, endpoint).timeout(5000);
+        shippers.add(shipper);
+        return shipper;
+    }
+
+    private void awaitData(byte[] expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (collector.acceptedData().length < expected.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(expected, collector.acceptedData());
+    }
+
+    private static byte[] lines(int from, int to) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append("Logged at 12:00:00 01-01-2013\nINFO@Test\trecord ").append(i).append('\n');
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    private static void write(File target, byte[] data, boolean append) throws IOException {
+        final FileOutputStream out = new FileOutputStream(target, append);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        final byte[] all = new byte[first.length + second.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static final class Batch {
+
+        final String file;
+
+        final long offset;
+
+        final byte[] data;
+
+        Batch(String file, long offset, byte[] data) {
+            this.file = file;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Answers with the queued failure codes, then 200, keeping what it accepted.
+     */
+    private static final class Collector implements HttpHandler {
+
+        private final LinkedList<Integer> failures = new LinkedList<Integer>();
+
+        private final List<Batch> accepted = new ArrayList<Batch>();
+
+        private final List<Long> requestTimes = new ArrayList<Long>();
+
+        synchronized void fail(int... codes) {
+            for (int code : codes) failures.add(code);
+        }
+
+        synchronized List<Batch> accepted() {
+            return new ArrayList<Batch>(accepted);
+        }
+
+        synchronized int requests() {
+            return requestTimes.size();
+        }
+
+        synchronized List<Long> requestTimes() {
+            return new ArrayList<Long>(requestTimes);
+        }
+
+        synchronized byte[] acceptedData() {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Batch batch : accepted) out.write(batch.data, 0, batch.data.length);
+            return out.toByteArray();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            final byte[] data = readAll(new GZIPInputStream(exchange.getRequestBody()));
+            final int code;
+            synchronized (this) {
+                requestTimes.add(System.currentTimeMillis());
+                code = failures.isEmpty() ? 200 : failures.removeFirst();
+                if (code == 200) {
+                    accepted.add(new Batch(exchange.getRequestHeaders().getFirst("X-Log-File"),
+                            Long.parseLong(exchange.getRequestHeaders().getFirst("X-Log-Offset")), data));
+                }
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        }
+    }
+}
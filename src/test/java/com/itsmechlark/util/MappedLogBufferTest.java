@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 John Chlark Sumatra
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.itsmechlark.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes records into a mapped buffer, reopens it as a restarted process would
+ * and checks what is recovered, in the background, into {@code .recovered}.
+ */
+public class MappedLogBufferTest {
+
+    private static final long TIMEOUT_MILLIS = 10 * 1000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversThePreviousRunsRecordsInOrder() throws Exception {
+        final File file = folder.newFile("app.log.mmap");
+        final File recovered = new File(folder.getRoot(), "app.log.recovered");
+        final MappedLogBuffer buffer = MappedLogBuffer.open(file, recovered, 64 * 1024);
+        for (int i = 0; i < 50; i++) buffer.append(System.currentTimeMillis(), "INFO", "Test", "record " + i);
+
+        MappedLogBuffer.open(file, recovered, 64 * 1024);
+
+        assertEquals(range(0, 50), recoveredMessages(file, recovered));
+    }
+
+    @Test
+    public void skipsARecordWithABadChecksum() throws Exception {
+        final File file = folder.newFile("app.log.mmap");
+        final File recovered = new File(folder.getRoot(), "app.log.recovered");
+        final MappedLogBuffer buffer = MappedLogBuffer.open(file, recovered, 64 * 1024);
+        for (int i = 0; i < 10; i++) buffer.append(System.currentTimeMillis(), "INFO", "Test", "record " + i);
+
+        // A crash while the last record was being copied.
+        corrupt(file, "record 9");
+        MappedLogBuffer.open(file, recovered, 64 * 1024);
+
+        assertEquals(range(0, 9), recoveredMessages(file, recovered));
+    }
+
+    @Test
+    public void recoversTheNewestRecordsAfterWrapping() throws Exception {
+        final File file = folder.newFile("app.log.mmap");
+        final File recovered = new File(folder.getRoot(), "app.log.recovered");
+        final MappedLogBuffer buffer = MappedLogBuffer.open(file, recovered, 4096);
+        for (int i = 0; i < 500; i++) buffer.append(System.currentTimeMillis(), "INFO", "Test", "record " + i);
+
+        MappedLogBuffer.open(file, recovered, 4096);
+
+        final List<String> messages = recoveredMessages(file, recovered);
+        assertFalse(messages.isEmpty());
+        assertTrue(messages.size() < 500);
+        assertEquals(range(500 - messages.size(), 500), messages);
+    }
+
+    @Test
+    public void recoversNothingTwice() throws Exception {
+        final File file = folder.newFile("app.log.mmap");
+        final File recovered = new File(folder.getRoot(), "app.log.recovered");
+        final MappedLogBuffer first = MappedLogBuffer.open(file, recovered, 64 * 1024);
+        for (int i = 0; i < 5; i++) first.append(System.currentTimeMillis(), "INFO", "Test", "record " + i);
+        final MappedLogBuffer second = MappedLogBuffer.open(file, recovered, 64 * 1024);
+        awaitRecovery(file);
+        for (int i = 5; i < 8; i++) second.append(System.currentTimeMillis(), "INFO", "Test", "record " + i);
+
+        MappedLogBuffer.open(file, recovered, 64 * 1024);
+
+        assertEquals(range(0, 8), recoveredMessages(file, recovered));
+    }
+
+    private static List<String> recoveredMessages(File file, File recovered) throws Exception {
+        awaitRecovery(file);
+        final List<String> messages = new ArrayList<String>();
+        new LogReader(recovered).read(new LogDecoder.Handler() {
+            @Override
+            public void record(long timeMillis, int priority, String tag, String msg) {
+                messages.add(msg);
+            }
+        });
+        return messages;
+    }
+
+    /**
+     * Waits for the "Log-init" thread to recover and delete the pending files.
+     */
+    private static void awaitRecovery(File file) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (hasPendingFiles(file)) {
+            assertTrue("recovery did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean hasPendingFiles(File file) {
+        for (String name : file.getParentFile().list()) {
+            if (name.startsWith(file.getName() + ".pending")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Flips a byte of the first record containing {@code text}.
+     */
+    private static void corrupt(File file, String text) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            final int at = new String(bytes, "ISO-8859-1").indexOf(text);
+            assertTrue(at >= 0);
+            raf.seek(at);
+            raf.write(bytes[at] ^ 0x20);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> range(int from, int to) {
+        final List<String> messages = new ArrayList<String>();
+        for (int i = from; i < to; i++) messages.add("record " + i);
+        return messages;
+    }
+}